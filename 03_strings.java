@@ -6,7 +6,8 @@
  * 2. Comparison: using '==' versus equals() and equalsIgnoreCase().
  * 3. Concatenation: using the '+' operator and concat() method.
  * 4. Basic methods: length(), charAt(), substring(), indexOf(), and lastIndexOf().
- * 5. Splitting a string into an array using split().
+ * 5. Splitting a string into an array using split(), and CsvTokenizer, which reads quoted CSV
+ *    fields and numbers in place without creating a String per field.
  * 6. Replacement operations: using replace() and replaceAll() for regex-based changes.
  * 7. Trimming whitespace with trim().
  * 8. Case conversions: using toUpperCase() and toLowerCase().
@@ -17,6 +18,9 @@
  * To run:     java 03_strings
  */
 
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
 public class StringManipulation {
     public static void main(String[] args) {
         System.out.println("=== Detailed String Manipulation Demo ===\n");
@@ -72,6 +76,27 @@ public class StringManipulation {
         for (String fruit : fruits) {
             System.out.println("- " + fruit);
         }
+
+        // split() builds a new String for every field and does not understand quotes.
+        // CsvTokenizer walks the text in place and handles quoted fields that contain commas.
+        String orders = "item,quantity,price\r\n\"Apples, red\",3,0.50\r\n\"12\"\" ruler\",1,2.25\r\n";
+        CsvTokenizer tokenizer = new CsvTokenizer(',');
+        tokenizer.reset(orders);
+        double total = 0;
+        int quantity = 0;
+        while (tokenizer.next()) {
+            if (tokenizer.row() == 0) {
+                continue; // Skip the header.
+            }
+            if (tokenizer.column() == 0) {
+                System.out.println("Order item: " + tokenizer);
+            } else if (tokenizer.column() == 1) {
+                quantity = tokenizer.parseInt();
+            } else {
+                total += quantity * tokenizer.parseDouble();
+            }
+        }
+        System.out.printf("Order total parsed with CsvTokenizer: %.2f%n", total);
         System.out.println();
 
         // 6. Replacement and Regular Expressions
@@ -119,3 +144,427 @@ public class StringManipulation {
         System.out.println("After delete: " + sb.toString());
     }
 }
+
+/**
+ * A CSV reader that reports each field as a range of its input instead of copying it.
+ *
+ * String.split() compiles or looks up a pattern, builds an array, and copies every field into
+ * a new String. CsvTokenizer is a reusable cursor: next() moves to the next field and records
+ * where it starts and ends, and the field is read in place with parseInt(), parseLong(),
+ * parseDouble() or contentEquals(), none of which allocate. Only toString() and appendTo()
+ * copy characters, for the fields the caller actually wants as text.
+ *
+ * The format is RFC 4180 with a configurable delimiter: a field may be wrapped in double
+ * quotes, in which case it may contain delimiters and line breaks, and a doubled quote inside
+ * it stands for one quote. Records end with CRLF, LF or CR. A final line break does not start
+ * an empty record.
+ *
+ * The input is a CharSequence or a byte[] in an ASCII-compatible encoding such as UTF-8.
+ * Delimiters, quotes and line breaks are single ASCII bytes, which never occur inside a
+ * multi-byte UTF-8 character, so bytes can be scanned without decoding them.
+ */
+class CsvTokenizer {
+    private static final char QUOTE = '"';
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final char delimiter;
+
+    private CharSequence chars;
+    private byte[] bytes;
+    private int length;
+    private int position;
+    private boolean afterDelimiter;
+    private int nextRow;
+    private int nextColumn;
+
+    // The current field.
+    private int start;
+    private int end;
+    private boolean quoted;
+    private boolean escaped;
+    private boolean endOfRow;
+    private int row;
+    private int column;
+
+    /**
+     * Creates a tokenizer for the given delimiter, such as ',', ';' or '\t'.
+     *
+     * @param delimiter the character between fields.
+     * @throws IllegalArgumentException if the delimiter is a quote, a line break or not ASCII.
+     */
+    CsvTokenizer(char delimiter) {
+        if (delimiter == QUOTE || delimiter == '\r' || delimiter == '\n' || delimiter > 0x7F) {
+            throw new IllegalArgumentException("Invalid delimiter: " + delimiter);
+        }
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Starts reading text from the beginning.
+     *
+     * @param text the CSV text.
+     */
+    void reset(CharSequence text) {
+        reset(text, null, text.length());
+    }
+
+    /**
+     * Starts reading encoded bytes from the beginning.
+     *
+     * @param data the CSV bytes in an ASCII-compatible encoding such as UTF-8.
+     */
+    void reset(byte[] data) {
+        reset(null, data, data.length);
+    }
+
+    private void reset(CharSequence text, byte[] data, int size) {
+        chars = text;
+        bytes = data;
+        length = size;
+        position = 0;
+        afterDelimiter = false;
+        nextRow = 0;
+        nextColumn = 0;
+        start = end = 0;
+        row = column = -1;
+    }
+
+    /**
+     * Calls the handler for every remaining field, passing this tokenizer positioned on it.
+     *
+     * @param handler called once per field; must not keep the tokenizer after it returns.
+     * @throws IllegalArgumentException if the input is not valid CSV.
+     */
+    void forEachField(Consumer<? super CsvTokenizer> handler) {
+        while (next()) {
+            handler.accept(this);
+        }
+    }
+
+    /**
+     * Moves to the next field.
+     *
+     * @return false if there are no more fields.
+     * @throws IllegalArgumentException if a quoted field is not closed, or a closing quote is
+     *         followed by something other than a delimiter or line break.
+     */
+    boolean next() {
+        if (position >= length && !afterDelimiter) {
+            return false;
+        }
+        afterDelimiter = false;
+        row = nextRow;
+        column = nextColumn;
+        if (position < length && charAt(position) == QUOTE) {
+            quoted = true;
+            escaped = false;
+            int i = position + 1;
+            start = i;
+            while (true) {
+                if (i >= length) {
+                    throw new IllegalArgumentException("Unclosed quote in row " + row + " at offset " + (start - 1));
+                }
+                if (charAt(i) == QUOTE) {
+                    if (i + 1 < length && charAt(i + 1) == QUOTE) {
+                        escaped = true;
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                }
+                i++;
+            }
+            end = i;
+            position = i + 1;
+        } else {
+            quoted = false;
+            escaped = false;
+            int i = position;
+            while (i < length) {
+                int c = charAt(i);
+                if (c == delimiter || c == '\n' || c == '\r') {
+                    break;
+                }
+                i++;
+            }
+            start = position;
+            end = i;
+            position = i;
+        }
+        finishField();
+        return true;
+    }
+
+    /**
+     * Consumes what follows a field: a delimiter, a line break or the end of the input.
+     */
+    private void finishField() {
+        endOfRow = true;
+        if (position < length) {
+            int c = charAt(position);
+            if (c == delimiter) {
+                position++;
+                afterDelimiter = true;
+                endOfRow = false;
+            } else if (c == '\r') {
+                position++;
+                if (position < length && charAt(position) == '\n') {
+                    position++;
+                }
+            } else if (c == '\n') {
+                position++;
+            } else {
+                throw new IllegalArgumentException("Unexpected character after closing quote in row " + row
+                        + " at offset " + position);
+            }
+        }
+        if (endOfRow) {
+            nextRow++;
+            nextColumn = 0;
+        } else {
+            nextColumn++;
+        }
+    }
+
+    /**
+     * @return the record number of the current field, counting from 0.
+     */
+    int row() {
+        return row;
+    }
+
+    /**
+     * @return the position of the current field in its record, counting from 0.
+     */
+    int column() {
+        return column;
+    }
+
+    /**
+     * @return the offset of the current field's first character, inside any quotes.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * @return the offset just past the current field's last character, before any closing quote.
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return true if the current field was wrapped in quotes.
+     */
+    boolean isQuoted() {
+        return quoted;
+    }
+
+    /**
+     * @return true if the current field is the last one in its record.
+     */
+    boolean isEndOfRow() {
+        return endOfRow;
+    }
+
+    /**
+     * Compares the current field, with doubled quotes read as one, to some text.
+     *
+     * @param text the text to compare with.
+     * @return true if they are the same characters.
+     */
+    boolean contentEquals(CharSequence text) {
+        if (bytes != null && !isAscii()) {
+            return toString().contentEquals(text);
+        }
+        int matched = 0;
+        for (int i = start; i < end; i++) {
+            int c = charAt(i);
+            if (c == QUOTE && escaped) {
+                i++; // Skip the second quote of a pair.
+            }
+            if (matched == text.length() || text.charAt(matched++) != c) {
+                return false;
+            }
+        }
+        return matched == text.length();
+    }
+
+    /**
+     * Parses the current field as a decimal int, like Integer.parseInt.
+     *
+     * @return the value.
+     * @throws NumberFormatException if the field is not an int.
+     */
+    int parseInt() {
+        long value = parseLong();
+        if (value != (int) value) {
+            throw new NumberFormatException("Not an int: " + this);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the current field as a decimal long, like Long.parseLong.
+     *
+     * @return the value.
+     * @throws NumberFormatException if the field is not a long.
+     */
+    long parseLong() {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (charAt(i) == '-' || charAt(i) == '+')) {
+            negative = charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a long: " + this);
+        }
+        // Accumulate negatively, since Long.MIN_VALUE has no positive counterpart.
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < limit / 10 || value * 10 < limit + digit) {
+                throw new NumberFormatException("Not a long: " + this);
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parses the current field as a double, like Double.parseDouble. Plain decimals with up to
+     * 15 significant digits and a small exponent, which covers most data, are parsed in place
+     * and rounded exactly as Double.parseDouble would round them. Anything else, such as
+     * "NaN", hexadecimal or very long numbers, falls back to Double.parseDouble.
+     *
+     * @return the value.
+     * @throws NumberFormatException if the field is not a double.
+     */
+    double parseDouble() {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (charAt(i) == '-' || charAt(i) == '+')) {
+            negative = charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean inFraction = false;
+        for (; i < end; i++) {
+            int c = charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa != 0 || c != '0') {
+                    if (++significantDigits > MAX_FAST_DIGITS) {
+                        return parseDoubleSlowly();
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (inFraction) {
+                    exponent--;
+                }
+            } else if (c == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return parseDoubleSlowly();
+        }
+        if (i < end && (charAt(i) == 'e' || charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (charAt(i) == '-' || charAt(i) == '+')) {
+                negativeExponent = charAt(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int explicit = 0;
+            for (; i < end; i++) {
+                int digit = charAt(i) - '0';
+                if (digit < 0 || digit > 9 || explicit > 10_000) {
+                    return parseDoubleSlowly();
+                }
+                explicit = explicit * 10 + digit;
+            }
+            if (i == exponentStart) {
+                return parseDoubleSlowly();
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (i != end) {
+            return parseDoubleSlowly();
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            // Both factors are exact doubles, so one rounding gives the correctly rounded result.
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseDoubleSlowly();
+        }
+        return negative ? -value : value;
+    }
+
+    private double parseDoubleSlowly() {
+        return Double.parseDouble(toString());
+    }
+
+    /**
+     * Appends the current field to a builder, with doubled quotes read as one.
+     *
+     * @param builder the builder to append to.
+     * @return the builder.
+     */
+    StringBuilder appendTo(StringBuilder builder) {
+        if (bytes != null && !isAscii()) {
+            return builder.append(toString());
+        }
+        for (int i = start; i < end; i++) {
+            int c = charAt(i);
+            if (c == QUOTE && escaped) {
+                i++;
+            }
+            builder.append((char) c);
+        }
+        return builder;
+    }
+
+    /**
+     * Copies the current field into a new String, with doubled quotes read as one.
+     *
+     * @return the field's text.
+     */
+    @Override
+    public String toString() {
+        String text = bytes != null
+                ? new String(bytes, start, end - start, StandardCharsets.UTF_8)
+                : chars.subSequence(start, end).toString();
+        return escaped ? text.replace("\"\"", "\"") : text;
+    }
+
+    private int charAt(int index) {
+        return bytes != null ? bytes[index] & 0xFF : chars.charAt(index);
+    }
+
+    private boolean isAscii() {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
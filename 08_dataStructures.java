@@ -6,30 +6,72 @@
  * 1. Lists:
  *    - ArrayList: Dynamic array implementation.
  *    - LinkedList: Doubly-linked list implementation.
+ *    - TieredList: Chunked list with O(1) get and O(sqrt n) insert or remove at any index.
  *
  * 2. Sets:
  *    - HashSet: Unordered collection of unique elements.
  *    - TreeSet: Sorted collection of unique elements.
+ *    - IntHashSet: Open-addressing set of primitive ints, with no boxing.
+ *    - RoaringIntSet: Sorted compressed int set (array, bitmap and run chunks) with fast
+ *      union, intersection, difference, rank and select.
  *
  * 3. Maps:
  *    - HashMap: Key-value pairs with fast access.
  *    - TreeMap: Sorted map based on keys.
+ *    - ObjectIntHashMap: Object keys with primitive int values, for counting without boxing.
+ *    - OffHeapBPlusTree: Sorted long-to-long map whose pages live outside the Java heap,
+ *      optionally in a memory-mapped file.
+ *    - PersistentHashMap / PersistentHashSet: Immutable hash trie versions with structural
+ *      sharing, so a consistent snapshot is just a reference.
  *
  * 4. Queues:
  *    - PriorityQueue: Elements ordered based on natural ordering or a custom comparator.
  *    - LinkedList used as a Queue: FIFO ordering.
+ *    - MpmcRingQueue: Bounded lock-free ring buffer for many producers and consumers.
+ *    - IndexedDaryHeap: Priority queue of int handles with decrease-key, in flat arrays.
  *
  * 5. Stacks:
  *    - Stack: LIFO data structure.
+ *    - ArrayStack, IntArrayStack, LongArrayStack: Unsynchronized array-backed stacks.
+ *    - TreiberStack: Lock-free stack for many threads, with elimination under contention.
  *
  * To compile: javac 08_dataStructures.java
  * To run:     java 08_dataStructures
+ * Benchmarks: java 08_dataStructures --bench
  */
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 public class DataStructuresDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            DataStructureBenchmarks.runAll();
+            return;
+        }
         System.out.println("=== Data Structures Demonstration ===\n");
 
         // 1. Lists
@@ -96,6 +138,16 @@ public class DataStructuresDemo {
             System.out.println("-- " + iterator.next());
         }
         System.out.println();
+
+        // TieredList: A full List whose middle inserts shift one small chunk, not the whole array.
+        List<Integer> tieredList = new TieredList<>();
+        for (int i = 0; i < 10; i++) {
+            tieredList.add(i);
+        }
+        tieredList.add(5, 99);
+        tieredList.remove(Integer.valueOf(2));
+        System.out.println("TieredList after inserting 99 at index 5 and removing 2: " + tieredList);
+        System.out.println();
     }
 
     /**
@@ -125,6 +177,35 @@ public class DataStructuresDemo {
         treeSet.add(15);
         treeSet.add(99);
         System.out.println("TreeSet (sorted): " + treeSet);
+
+        // IntHashSet: Primitive ints in one flat array, no Integer objects.
+        IntHashSet intSet = new IntHashSet();
+        intSet.addAll(new int[] {42, 7, 15, 42, 0});
+        System.out.println("IntHashSet: " + intSet + " (size " + intSet.size() + ")");
+        System.out.println("Contains 7 and 15: " + intSet.containsAll(new int[] {7, 15}));
+        int sum = 0;
+        PrimitiveIterator.OfInt ints = intSet.iterator();
+        while (ints.hasNext()) {
+            sum += ints.nextInt();
+        }
+        System.out.println("Sum of IntHashSet elements: " + sum);
+
+        // RoaringIntSet: Sorted like the TreeSet, but stored as compressed 16-bit chunks.
+        RoaringIntSet ids = new RoaringIntSet();
+        ids.add(42);
+        ids.add(7);
+        ids.add(15);
+        ids.addRange(1_000_000, 1_999_999); // A dense range costs a few runs, not a million nodes.
+        RoaringIntSet other = new RoaringIntSet();
+        other.add(15);
+        other.addRange(1_500_000, 2_500_000);
+        System.out.println("RoaringIntSet size: " + ids.cardinality() + ", first elements: "
+                + ids.select(0) + ", " + ids.select(1) + ", " + ids.select(2));
+        System.out.println("Intersection size: " + RoaringIntSet.intersection(ids, other).cardinality()
+                + ", union size: " + RoaringIntSet.union(ids, other).cardinality()
+                + ", difference size: " + RoaringIntSet.difference(ids, other).cardinality());
+        System.out.println("Elements <= 1,000,009: " + ids.rank(1_000_009)
+                + ", serialized bytes: " + ids.toByteArray().length);
         System.out.println();
     }
 
@@ -157,6 +238,41 @@ public class DataStructuresDemo {
         treeMap.put("Eve", 28);
         treeMap.put("Frank", 33);
         System.out.println("TreeMap (sorted by keys): " + treeMap);
+
+        // OffHeapBPlusTree: Sorted long keys in off-heap pages, with floor/ceiling and range scans.
+        OffHeapBPlusTree index = OffHeapBPlusTree.inMemory();
+        for (long key = 10; key <= 100; key += 10) {
+            index.put(key, key * key);
+        }
+        System.out.println("OffHeapBPlusTree size: " + index.size() + ", get(30): " + index.get(30, -1));
+        System.out.println("Floor of 55: " + index.floorKey(55).getAsLong()
+                + ", ceiling of 55: " + index.ceilingKey(55).getAsLong());
+        System.out.print("Range [40, 70]:");
+        index.scan(40, 70, (key, value) -> System.out.print(" " + key + "=" + value));
+        System.out.println();
+
+        // PersistentHashMap: Every update returns a new version; old versions stay valid.
+        PersistentHashMap<String, Integer> version1 = PersistentHashMap.<String, Integer>empty()
+                .put("Alice", 30)
+                .put("Bob", 25);
+        PersistentHashMap<String, Integer> version2 = version1.put("Alice", 31).remove("Bob");
+        System.out.println("PersistentHashMap version 1: " + version1 + ", version 2: " + version2);
+        PersistentHashMap.Transient<String, Integer> builder = version2.asTransient();
+        for (int i = 0; i < 1000; i++) {
+            builder.put("key" + i, i);
+        }
+        PersistentHashMap<String, Integer> version3 = builder.persistent();
+        System.out.println("Version 3 size after batch of 1000: " + version3.size()
+                + ", version 2 still has size " + version2.size());
+
+        // ObjectIntHashMap: Counting words with primitive values, no Integer per update.
+        ObjectIntHashMap<String> wordCounts = new ObjectIntHashMap<>();
+        for (String word : "the quick fox and the lazy dog and the cat".split(" ")) {
+            wordCounts.addTo(word, 1);
+        }
+        System.out.println("ObjectIntHashMap word counts: " + wordCounts);
+        System.out.println("Count of 'the': " + wordCounts.getOrDefault("the", 0));
+        System.out.println("Count of 'bird': " + wordCounts.getOrDefault("bird", 0));
         System.out.println();
     }
 
@@ -176,6 +292,19 @@ public class DataStructuresDemo {
         System.out.println("Poll from PriorityQueue: " + priorityQueue.poll());
         System.out.println("After poll, PriorityQueue: " + priorityQueue);
 
+        // IndexedDaryHeap: Priorities of int handles can be changed in place.
+        IndexedDaryHeap heap = new IndexedDaryHeap(10);
+        heap.insert(3, 30);
+        heap.insert(1, 10);
+        heap.insert(2, 20);
+        heap.decreaseKey(3, 5);
+        System.out.print("IndexedDaryHeap poll order after decreaseKey(3, 5):");
+        while (!heap.isEmpty()) {
+            long priority = heap.peekPriority();
+            System.out.print(" " + heap.poll() + "(" + priority + ")");
+        }
+        System.out.println();
+
         // LinkedList as Queue: FIFO ordering.
         Queue<String> queue = new LinkedList<>();
         queue.offer("First");
@@ -185,6 +314,17 @@ public class DataStructuresDemo {
         System.out.println("Peek from Queue: " + queue.peek());
         System.out.println("Poll from Queue: " + queue.poll());
         System.out.println("After poll, Queue: " + queue);
+
+        // MpmcRingQueue: FIFO ordering in a fixed array, safe for many threads without locks.
+        MpmcRingQueue<String> ringQueue = new MpmcRingQueue<>(8, MpmcRingQueue.WaitStrategy.PARK);
+        ringQueue.offer("First");
+        ringQueue.offer("Second");
+        ringQueue.offerBatch(new String[] {"Third", "Fourth"});
+        System.out.println("MpmcRingQueue: " + ringQueue + " (capacity " + ringQueue.capacity() + ")");
+        System.out.println("Poll from MpmcRingQueue: " + ringQueue.poll());
+        List<String> drained = new ArrayList<>();
+        ringQueue.drainTo(drained);
+        System.out.println("Drained from MpmcRingQueue: " + drained);
         System.out.println();
     }
 
@@ -210,6 +350,4629 @@ public class DataStructuresDemo {
             System.out.println("-- Popped: " + stack.pop());
         }
         System.out.println("Stack after popping all elements: " + stack);
+
+        // ArrayStack: Same LIFO behaviour without the lock Stack takes on every call.
+        ArrayStack<String> arrayStack = new ArrayStack<>();
+        arrayStack.push("Bottom");
+        arrayStack.push("Top");
+        System.out.println("ArrayStack: " + arrayStack + ", peek: " + arrayStack.peek());
+
+        // IntArrayStack: Primitive ints, no boxing.
+        IntArrayStack intStack = new IntArrayStack();
+        for (int i = 1; i <= 3; i++) {
+            intStack.push(i * 10);
+        }
+        System.out.println("IntArrayStack pop: " + intStack.pop() + ", remaining size: " + intStack.size());
+
+        // TreiberStack: Lock-free, safe to share between threads.
+        TreiberStack<String> sharedStack = new TreiberStack<>();
+        sharedStack.push("Bottom");
+        sharedStack.push("Top");
+        System.out.println("TreiberStack pop: " + sharedStack.pop() + ", then: " + sharedStack.pop()
+                + ", then: " + sharedStack.pop());
         System.out.println();
     }
 }
+
+/**
+ * A set of primitive ints using open addressing with linear probing.
+ *
+ * All elements live in one int[] table, so an element costs 4 bytes (divided by the load
+ * factor) instead of a boxed Integer plus a HashMap node, and a lookup touches one or two
+ * adjacent cache lines instead of following pointers. Slot value 0 marks an empty slot; the
+ * element 0 itself is tracked by a separate flag. Removal shifts later entries of the same
+ * probe run back, so no tombstones are needed.
+ */
+class IntHashSet {
+    private static final int EMPTY = 0;
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final float DEFAULT_LOAD_FACTOR = 0.5f;
+    private static final int DEFAULT_GROWTH_FACTOR = 2;
+
+    private final float loadFactor;
+    private final int growthFactor;
+    private int[] table;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+    private boolean containsZero;
+
+    /**
+     * Creates an empty set with default capacity, load factor 0.5 and doubling on resize.
+     */
+    public IntHashSet() {
+        this(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     * Creates an empty set.
+     *
+     * @param expectedSize the number of elements the set should hold without resizing.
+     * @param loadFactor the fill ratio that triggers a resize, between 0 and 1 (exclusive).
+     * @param growthFactor the power-of-two factor the table grows by on each resize.
+     */
+    public IntHashSet(int expectedSize, float loadFactor, int growthFactor) {
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        if (growthFactor < 2 || Integer.bitCount(growthFactor) != 1) {
+            throw new IllegalArgumentException("Growth factor must be a power of two >= 2: " + growthFactor);
+        }
+        this.loadFactor = loadFactor;
+        this.growthFactor = growthFactor;
+        allocate(tableSizeFor(expectedSize, loadFactor));
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @return true if the value was not already present.
+     */
+    public boolean add(int value) {
+        if (value == EMPTY) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = hash(value) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size >= resizeThreshold && table.length == MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("Set too large: " + size);
+        }
+        table[slot] = value;
+        if (++size > resizeThreshold) {
+            rehash((int) Math.min((long) table.length * growthFactor, MAXIMUM_CAPACITY));
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the value is in the set.
+     */
+    public boolean contains(int value) {
+        if (value == EMPTY) {
+            return containsZero;
+        }
+        int slot = hash(value) & mask;
+        int current;
+        while ((current = table[slot]) != EMPTY) {
+            if (current == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @return true if the value was present.
+     */
+    public boolean remove(int value) {
+        if (value == EMPTY) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int slot = hash(value) & mask;
+        while (table[slot] != value) {
+            if (table[slot] == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Backward-shift deletion: pull later entries of the probe run into the hole when
+        // their home slot is not between the hole and their current slot.
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != EMPTY) {
+            int home = hash(table[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Adds every value of the array, growing the table once up front.
+     *
+     * @return the number of values that were not already present.
+     */
+    public int addAll(int[] values) {
+        ensureCapacity(size + values.length);
+        int added = 0;
+        for (int value : values) {
+            if (add(value)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns whether every value of the array is in the set.
+     */
+    public boolean containsAll(int[] values) {
+        for (int value : values) {
+            if (!contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Grows the table so that it can hold the given number of elements without resizing.
+     */
+    public void ensureCapacity(int expectedSize) {
+        int needed = tableSizeFor(expectedSize, loadFactor);
+        if (needed > table.length) {
+            rehash(needed);
+        }
+    }
+
+    /**
+     * Shrinks the table to the smallest size that fits the current elements.
+     */
+    public void trimToSize() {
+        int needed = tableSizeFor(size, loadFactor);
+        if (needed < table.length) {
+            rehash(needed);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * Returns an iterator over the elements in table order; nextInt() does not box.
+     * The set must not be modified while iterating.
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int slot = -1;
+            private boolean zeroPending = containsZero;
+
+            @Override
+            public boolean hasNext() {
+                if (zeroPending) {
+                    return true;
+                }
+                int next = slot + 1;
+                while (next < table.length && table[next] == EMPTY) {
+                    next++;
+                }
+                return next < table.length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (zeroPending) {
+                    zeroPending = false;
+                    return EMPTY;
+                }
+                do {
+                    slot++;
+                } while (slot < table.length && table[slot] == EMPTY);
+                if (slot >= table.length) {
+                    throw new NoSuchElementException();
+                }
+                return table[slot];
+            }
+        };
+    }
+
+    /**
+     * Copies the elements into a new array, in iteration order.
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        int i = 0;
+        if (containsZero) {
+            result[i++] = EMPTY;
+        }
+        for (int value : table) {
+            if (value != EMPTY) {
+                result[i++] = value;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private void rehash(int newCapacity) {
+        int[] old = table;
+        allocate(newCapacity);
+        for (int value : old) {
+            if (value != EMPTY) {
+                int slot = hash(value) & mask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+    }
+
+    private static int tableSizeFor(int expectedSize, float loadFactor) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) loadFactor) + 1;
+        if (needed > MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("Set too large: " + expectedSize);
+        }
+        return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit((int) needed - 1) << 1);
+    }
+
+    /**
+     * Spreads the bits so that sequential ids do not fill one run of slots.
+     */
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * A hash map from object keys to primitive int values.
+ *
+ * Keys, values and the keys' hash codes sit in three parallel arrays and collisions are
+ * resolved by linear probing, so an update allocates nothing: no Integer box and no entry node.
+ * Caching the hash codes means probing compares ints first and only calls equals() on a hash
+ * match, and resizing never calls hashCode() again. Null keys are not allowed (a null slot is
+ * empty). Removal uses backward-shift deletion, as in IntHashSet.
+ *
+ * @param <K> the key type.
+ */
+class ObjectIntHashMap<K> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private final float loadFactor;
+    private Object[] keys;
+    private int[] values;
+    private int[] hashes;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * Creates an empty map with default capacity and load factor 0.5.
+     */
+    public ObjectIntHashMap() {
+        this(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @param expectedSize the number of keys the map should hold without resizing.
+     * @param loadFactor the fill ratio that triggers a resize, between 0 and 1 (exclusive).
+     */
+    public ObjectIntHashMap(int expectedSize, float loadFactor) {
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        allocate(tableSizeFor(expectedSize, loadFactor));
+    }
+
+    /**
+     * Returns the value for the key, or defaultValue if the key is absent.
+     */
+    public int getOrDefault(Object key, int defaultValue) {
+        int slot = find(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @return the previous value, or defaultValue if the key was absent.
+     */
+    public int put(K key, int value, int defaultValue) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(key)) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        insert(slot, key, value, hash);
+        return defaultValue;
+    }
+
+    /**
+     * Adds delta to the value of the key, treating an absent key as 0.
+     * This is the counting operation: it allocates nothing once the key is present.
+     *
+     * @return the new value.
+     */
+    public int addTo(K key, int delta) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equals(key)) {
+                return values[slot] += delta;
+            }
+            slot = (slot + 1) & mask;
+        }
+        insert(slot, key, delta, hash);
+        return delta;
+    }
+
+    /**
+     * Removes the key.
+     *
+     * @return the removed value, or defaultValue if the key was absent.
+     */
+    public int remove(Object key, int defaultValue) {
+        int slot = find(key);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        int removed = values[slot];
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != null) {
+            int home = hashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hashes[hole] = hashes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = null;
+        values[hole] = 0;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * Calls the action for every entry, in table order, without boxing the values.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super K> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept((K) keys[i], values[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((key, value) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(key).append('=').append(value);
+        });
+        return sb.append('}').toString();
+    }
+
+    private int find(Object key) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        Object current;
+        while ((current = keys[slot]) != null) {
+            if (hashes[slot] == hash && current.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int slot, K key, int value, int hash) {
+        if (size >= resizeThreshold && keys.length == MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("Map too large: " + size);
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        hashes[slot] = hash;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldHashes = hashes;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = Math.min(capacity - 1, (int) (capacity * loadFactor));
+    }
+
+    private static int tableSizeFor(int expectedSize, float loadFactor) {
+        long needed = (long) Math.ceil(Math.max(expectedSize, 1) / (double) loadFactor) + 1;
+        if (needed > MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("Map too large: " + expectedSize);
+        }
+        return Math.max(DEFAULT_CAPACITY, Integer.highestOneBit((int) needed - 1) << 1);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * A bounded multi-producer/multi-consumer queue backed by a ring buffer.
+ *
+ * This is Dmitry Vyukov's bounded MPMC queue, the same slot-sequence idea the LMAX Disruptor
+ * uses. Every slot carries a sequence number that says whose turn it is: a producer may write
+ * slot i at position p when sequence[i] == p, and publishes by setting it to p + 1; a consumer
+ * may read it when sequence[i] == p + 1 and frees it by setting it to p + capacity. Producers
+ * and consumers claim positions with a CAS on the tail and head counters only, so no thread
+ * ever holds a lock and nothing is allocated per element. The two counters are padded so they
+ * sit on different cache lines and producers do not slow consumers down through false sharing.
+ *
+ * Blocking operations (put, take and the timed offer/poll) retry according to the chosen
+ * WaitStrategy. size() and iteration are estimates while other threads are active.
+ *
+ * @param <E> the element type.
+ */
+class MpmcRingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * What a blocked thread does between retries.
+     */
+    enum WaitStrategy {
+        /** Busy-spin with Thread.onSpinWait(): lowest latency, but needs a spare core per waiting thread. */
+        SPIN,
+        /** Thread.yield() between retries. */
+        YIELD,
+        /** Spin briefly, then park with a back-off up to 1 ms: lowest CPU use. */
+        PARK
+    }
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final PaddedCounter head = new PaddedCounter();
+    private final PaddedCounter tail = new PaddedCounter();
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the minimum capacity; it is rounded up to a power of two.
+     * @param waitStrategy what blocked threads do between retries.
+     */
+    MpmcRingQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 2 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        Objects.requireNonNull(element);
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[slot] = element;
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // difference > 0: another producer claimed this position; reload the tail.
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long position = head.get();
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[slot];
+                    elements[slot] = null;
+                    sequences.set(slot, position + elements.length);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        while (true) {
+            long position = head.get();
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1) {
+                return null;
+            }
+            E element = (E) elements[slot];
+            // The element is only valid if no consumer took the slot while we read it.
+            if (element != null && head.get() == position) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Offers as many elements of the array as there is room for, claiming all their slots with a
+     * single CAS on the tail.
+     *
+     * @param batch the elements to add, in order; none may be null.
+     * @return the number of elements added, from the start of the array.
+     */
+    int offerBatch(E[] batch) {
+        for (E element : batch) {
+            Objects.requireNonNull(element);
+        }
+        int offered = 0;
+        while (offered < batch.length) {
+            long position = tail.get();
+            long free = elements.length - (position - head.get());
+            if (free <= 0) {
+                break;
+            }
+            int count = (int) Math.min(batch.length - offered, free);
+            long last = position + count - 1;
+            // The last slot being free means every earlier one has at least been claimed by a
+            // consumer. If it is not free yet, try a smaller batch.
+            while (count > 1 && sequences.get((int) last & mask) != last) {
+                count >>= 1;
+                last = position + count - 1;
+            }
+            long difference = sequences.get((int) last & mask) - last;
+            if (difference < 0) {
+                break;
+            } else if (difference > 0) {
+                continue;
+            }
+            if (!tail.compareAndSet(position, position + count)) {
+                continue;
+            }
+            for (long p = position; p <= last; p++) {
+                int slot = (int) p & mask;
+                awaitSequence(slot, p);
+                elements[slot] = batch[offered++];
+                sequences.set(slot, p + 1);
+            }
+        }
+        return offered;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes up to maxElements, claiming all their slots with a single CAS on the head.
+     */
+    @Override
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        if (target == this) {
+            throw new IllegalArgumentException("Cannot drain a queue into itself");
+        }
+        int drained = 0;
+        while (drained < maxElements) {
+            long position = head.get();
+            long available = tail.get() - position;
+            if (available <= 0) {
+                break;
+            }
+            int count = (int) Math.min(maxElements - drained, available);
+            long last = position + count - 1;
+            // The last slot being published means every earlier one has at least been claimed by a
+            // producer. If it is not published yet, try a smaller batch.
+            while (count > 1 && sequences.get((int) last & mask) != last + 1) {
+                count >>= 1;
+                last = position + count - 1;
+            }
+            long difference = sequences.get((int) last & mask) - (last + 1);
+            if (difference < 0) {
+                break;
+            } else if (difference > 0) {
+                continue;
+            }
+            if (!head.compareAndSet(position, position + count)) {
+                continue;
+            }
+            long p = position;
+            try {
+                for (; p <= last; p++) {
+                    target.add(releaseSlot(p));
+                    drained++;
+                }
+            } finally {
+                // If target.add threw, the rest of the claimed slots must still be released or
+                // producers would wait on them forever. Their elements are dropped, which
+                // drainTo's contract allows when the target rejects an element.
+                for (long rest = p + 1; rest <= last; rest++) {
+                    releaseSlot(rest);
+                }
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Takes the element at a claimed position and hands its slot back to producers.
+     */
+    @SuppressWarnings("unchecked")
+    private E releaseSlot(long position) {
+        int slot = (int) position & mask;
+        awaitSequence(slot, position + 1);
+        E element = (E) elements[slot];
+        elements[slot] = null;
+        sequences.set(slot, position + elements.length);
+        return element;
+    }
+
+    @Override
+    public void put(E element) throws InterruptedException {
+        int attempt = 0;
+        while (!offer(element)) {
+            backOff(attempt++, Long.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempt = 0;
+        while (!offer(element)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            backOff(attempt++, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E element;
+        int attempt = 0;
+        while ((element = poll()) == null) {
+            backOff(attempt++, Long.MAX_VALUE);
+        }
+        return element;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E element;
+        int attempt = 0;
+        while ((element = poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            backOff(attempt++, remaining);
+        }
+        return element;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return elements.length - size();
+    }
+
+    @Override
+    public int size() {
+        // Read head first: it only grows, so the difference can never be negative.
+        long first = head.get();
+        long last = tail.get();
+        return (int) Math.max(0, Math.min(elements.length, last - first));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns a read-only iterator over a snapshot of the published elements.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        long position = head.get();
+        long end = tail.get();
+        for (long p = position; p < end; p++) {
+            int slot = (int) p & mask;
+            @SuppressWarnings("unchecked")
+            E element = (E) elements[slot];
+            if (sequences.get(slot) == p + 1 && element != null) {
+                snapshot.add(element);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Waits for a slot claimed as part of a batch whose previous owner has not finished yet.
+     * That owner is already past its CAS, so the wait is short unless it was descheduled.
+     */
+    private void awaitSequence(int slot, long expected) {
+        for (int spins = 0; sequences.get(slot) != expected; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private void backOff(int attempt, long maxNanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        switch (waitStrategy) {
+            case SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (attempt < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(Math.min(maxNanos, 1000L << Math.min(attempt - 100, 10)));
+                }
+        }
+    }
+
+    /**
+     * A volatile long surrounded by unused fields so that two counters never share a cache line.
+     * Fields of a superclass are laid out before those of a subclass, which keeps the order
+     * padding - value - padding.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedCounter extends CounterValue {
+        private long p8, p9, p10, p11, p12, p13, p14;
+    }
+
+    @SuppressWarnings("unused")
+    private static class PaddingBefore {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class CounterValue extends PaddingBefore {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(CounterValue.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long value;
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expected, long update) {
+            return VALUE.compareAndSet(this, expected, update);
+        }
+    }
+}
+
+/**
+ * Rough throughput comparisons between the structures in this file and their java.util
+ * counterparts, run with "java 08_dataStructures --bench".
+ *
+ * Each figure is the best of several timed rounds after a warm-up round. That is enough to
+ * show the size of a difference, not to measure small ones.
+ */
+class DataStructureBenchmarks {
+    private static final int ROUNDS = 5;
+
+    /**
+     * A benchmark body that may block.
+     */
+    @FunctionalInterface
+    interface Body {
+        void run() throws InterruptedException;
+    }
+
+    static void runAll() throws InterruptedException {
+        System.out.println("=== Data Structure Benchmarks ===\n");
+        compareLists();
+        compareQueues();
+        compareStacks();
+    }
+
+    /**
+     * Inserts and removes in the middle of each list, then iterates over a large one.
+     */
+    static void compareLists() throws InterruptedException {
+        Integer element = 42;
+        Map<String, Supplier<List<Integer>>> lists = new LinkedHashMap<>();
+        lists.put("ArrayList", ArrayList::new);
+        lists.put("LinkedList", LinkedList::new);
+        lists.put("TieredList", TieredList::new);
+
+        for (int edits : new int[] {10_000, 100_000}) {
+            System.out.println("Lists (insert " + edits + " in the middle, then remove them from the middle):");
+            for (Map.Entry<String, Supplier<List<Integer>>> entry : lists.entrySet()) {
+                if (edits > 10_000 && entry.getKey().equals("LinkedList")) {
+                    // Walking to the middle by index is O(n) per edit; this size would take minutes.
+                    continue;
+                }
+                report(entry.getKey(), 2L * edits, () -> {
+                    List<Integer> list = entry.getValue().get();
+                    for (int i = 0; i < edits; i++) {
+                        list.add(list.size() / 2, element);
+                    }
+                    while (!list.isEmpty()) {
+                        list.remove(list.size() / 2);
+                    }
+                });
+            }
+        }
+
+        int size = 1_000_000;
+        System.out.println("Lists (iterate over " + size + "):");
+        for (Map.Entry<String, Supplier<List<Integer>>> entry : lists.entrySet()) {
+            List<Integer> list = entry.getValue().get();
+            for (int i = 0; i < size; i++) {
+                list.add(i);
+            }
+            long[] sink = new long[1];
+            report(entry.getKey(), size, () -> {
+                long sum = 0;
+                for (Integer value : list) {
+                    sum += value;
+                }
+                sink[0] += sum;
+            });
+        }
+        System.out.println();
+    }
+
+    /**
+     * Passes messages from two producers to two consumers through each queue: first with
+     * non-blocking offer and poll retried after a yield, then with blocking put and take, which
+     * for MpmcRingQueue wait according to each WaitStrategy. SPIN needs a core for every waiting
+     * thread; with fewer cores than the four threads it is far slower than the others, because a
+     * spinning thread holds its core until the scheduler preempts it.
+     */
+    static void compareQueues() throws InterruptedException {
+        System.out.println("Queues (2 producers, 2 consumers, offer/poll):");
+        int messages = 2_000_000;
+        int capacity = 1024;
+        Map<String, Supplier<Queue<Integer>>> queues = new LinkedHashMap<>();
+        queues.put("synchronized LinkedList", SynchronizedQueue::new);
+        queues.put("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(capacity));
+        queues.put("MpmcRingQueue", () -> new MpmcRingQueue<>(capacity, MpmcRingQueue.WaitStrategy.YIELD));
+        for (Map.Entry<String, Supplier<Queue<Integer>>> entry : queues.entrySet()) {
+            report(entry.getKey(), messages, () -> passMessages(entry.getValue().get(), messages, 2, 2));
+        }
+
+        System.out.println("Queues (2 producers, 2 consumers, put/take):");
+        Map<String, Supplier<BlockingQueue<Integer>>> blockingQueues = new LinkedHashMap<>();
+        blockingQueues.put("ArrayBlockingQueue", () -> new ArrayBlockingQueue<>(capacity));
+        for (MpmcRingQueue.WaitStrategy strategy : MpmcRingQueue.WaitStrategy.values()) {
+            blockingQueues.put("MpmcRingQueue " + strategy, () -> new MpmcRingQueue<>(capacity, strategy));
+        }
+        for (Map.Entry<String, Supplier<BlockingQueue<Integer>>> entry : blockingQueues.entrySet()) {
+            report(entry.getKey(), messages, () -> transferMessages(entry.getValue().get(), messages, 2, 2));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Pushes and then pops a million elements on one thread, then lets four threads push and pop
+     * pairs on a shared stack. Every popped value is added to a sum that is printed at the end,
+     * so the JIT cannot drop the pops as dead code.
+     *
+     * TreiberStack is not necessarily faster than Stack in the threaded run. Each push allocates
+     * a node, while a monitor that is rarely contended is cheap. On a machine with few cores the
+     * four threads seldom overlap, so Stack can come out ahead.
+     */
+    static void compareStacks() throws InterruptedException {
+        int size = 1_000_000;
+        Integer element = 42;
+        long[] sink = new long[1];
+        System.out.println("Stacks (single thread, push then pop " + size + "):");
+        report("Stack", 2L * size, () -> {
+            Stack<Integer> stack = new Stack<>();
+            for (int i = 0; i < size; i++) {
+                stack.push(element);
+            }
+            long sum = 0;
+            while (!stack.isEmpty()) {
+                sum += stack.pop();
+            }
+            sink[0] += sum;
+        });
+        report("ArrayDeque", 2L * size, () -> {
+            ArrayDeque<Integer> stack = new ArrayDeque<>();
+            for (int i = 0; i < size; i++) {
+                stack.push(element);
+            }
+            long sum = 0;
+            while (!stack.isEmpty()) {
+                sum += stack.pop();
+            }
+            sink[0] += sum;
+        });
+        report("ArrayStack", 2L * size, () -> {
+            ArrayStack<Integer> stack = new ArrayStack<>();
+            for (int i = 0; i < size; i++) {
+                stack.push(element);
+            }
+            long sum = 0;
+            while (!stack.isEmpty()) {
+                sum += stack.pop();
+            }
+            sink[0] += sum;
+        });
+        report("IntArrayStack", 2L * size, () -> {
+            IntArrayStack stack = new IntArrayStack();
+            for (int i = 0; i < size; i++) {
+                stack.push(i);
+            }
+            long sum = 0;
+            while (!stack.isEmpty()) {
+                sum += stack.pop();
+            }
+            sink[0] += sum;
+        });
+
+        int threads = 4;
+        System.out.println("Stacks (" + threads + " threads, push/pop pairs):");
+        report("Stack", 2L * size, () -> {
+            Stack<Integer> stack = new Stack<>();
+            sink[0] += runPairs(threads, size / threads, () -> stack.push(element), stack::pop);
+        });
+        report("TreiberStack", 2L * size, () -> {
+            TreiberStack<Integer> stack = new TreiberStack<>();
+            sink[0] += runPairs(threads, size / threads, () -> stack.push(element), stack::pop);
+        });
+        System.out.println("  (sum of popped values: " + sink[0] + ")");
+        System.out.println();
+    }
+
+    /**
+     * Runs push/pop pairs on several threads.
+     *
+     * @return the sum of all popped values.
+     */
+    private static long runPairs(int threads, int pairs, Runnable push, Supplier<Integer> pop)
+            throws InterruptedException {
+        long[] sums = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers.add(new Thread(() -> {
+                long sum = 0;
+                for (int i = 0; i < pairs; i++) {
+                    push.run();
+                    sum += pop.get();
+                }
+                sums[id] = sum;
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers.get(t).join();
+            total += sums[t];
+        }
+        return total;
+    }
+
+    private static void passMessages(Queue<Integer> queue, int messages, int producers, int consumers)
+            throws InterruptedException {
+        Integer message = 42;
+        int perProducer = messages / producers;
+        int perConsumer = messages / consumers;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(message)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perConsumer; i++) {
+                    while (queue.poll() == null) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void transferMessages(BlockingQueue<Integer> queue, int messages, int producers, int consumers)
+            throws InterruptedException {
+        Integer message = 42;
+        int perProducer = messages / producers;
+        int perConsumer = messages / consumers;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.put(message);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perConsumer; i++) {
+                        queue.take();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Runs the body once to warm up, then ROUNDS times, and prints the best rate.
+     */
+    static void report(String name, long operations, Body body) throws InterruptedException {
+        body.run();
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("  %-28s %8.1f M ops/s%n", name, operations * 1e3 / best);
+    }
+
+    /**
+     * A LinkedList guarded by one lock, which is what sharing it between threads requires.
+     */
+    private static final class SynchronizedQueue<E> extends AbstractQueue<E> {
+        private final LinkedList<E> list = new LinkedList<>();
+
+        @Override
+        public synchronized boolean offer(E element) {
+            return list.offer(element);
+        }
+
+        @Override
+        public synchronized E poll() {
+            return list.poll();
+        }
+
+        @Override
+        public synchronized E peek() {
+            return list.peek();
+        }
+
+        @Override
+        public synchronized int size() {
+            return list.size();
+        }
+
+        /**
+         * Iterates over a copy taken under the lock, so other threads can keep using the queue.
+         */
+        @Override
+        public synchronized Iterator<E> iterator() {
+            return Collections.unmodifiableList(new ArrayList<>(list)).iterator();
+        }
+    }
+}
+
+/**
+ * A LIFO stack backed by a growable array, for use by one thread at a time.
+ *
+ * java.util.Stack extends Vector, so every push, pop and peek is synchronized even when only
+ * one thread ever touches it. This class does the same work with no locking. Popped slots are
+ * cleared so the stack does not keep garbage reachable.
+ *
+ * @param <E> the element type.
+ */
+class ArrayStack<E> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Object[] elements;
+    private int size;
+
+    public ArrayStack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ArrayStack(int initialCapacity) {
+        elements = new Object[Math.max(1, initialCapacity)];
+    }
+
+    public void push(E element) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = element;
+    }
+
+    /**
+     * Removes and returns the top element.
+     *
+     * @throws EmptyStackException if the stack is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        E element = (E) elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    /**
+     * Returns the top element without removing it.
+     *
+     * @throws EmptyStackException if the stack is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return (E) elements[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Lists the elements from bottom to top, like Stack.toString().
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+}
+
+/**
+ * An unsynchronized LIFO stack of primitive ints.
+ */
+class IntArrayStack {
+    private int[] elements;
+    private int size;
+
+    public IntArrayStack() {
+        this(16);
+    }
+
+    public IntArrayStack(int initialCapacity) {
+        elements = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void push(int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = value;
+    }
+
+    /**
+     * @throws EmptyStackException if the stack is empty.
+     */
+    public int pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return elements[--size];
+    }
+
+    /**
+     * @throws EmptyStackException if the stack is empty.
+     */
+    public int peek() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return elements[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+}
+
+/**
+ * An unsynchronized LIFO stack of primitive longs.
+ */
+class LongArrayStack {
+    private long[] elements;
+    private int size;
+
+    public LongArrayStack() {
+        this(16);
+    }
+
+    public LongArrayStack(int initialCapacity) {
+        elements = new long[Math.max(1, initialCapacity)];
+    }
+
+    public void push(long value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size++] = value;
+    }
+
+    /**
+     * @throws EmptyStackException if the stack is empty.
+     */
+    public long pop() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return elements[--size];
+    }
+
+    /**
+     * @throws EmptyStackException if the stack is empty.
+     */
+    public long peek() {
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        return elements[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+}
+
+/**
+ * A lock-free LIFO stack (R. Kent Treiber, 1986) with an elimination array.
+ *
+ * The stack is a linked list whose head is swapped with a CAS. Under heavy contention most of
+ * those CASes fail, and every failure means another trip to the same hot cache line. So after a
+ * failed CAS, a thread tries the elimination array instead: a pusher parks its node in a random
+ * slot for a short while, and a popper that finds a parked node takes it directly. A push and
+ * a pop that meet this way cancel out without touching the head at all. If nobody shows up the
+ * pusher takes its node back and retries the CAS.
+ *
+ * @param <E> the element type.
+ */
+class TreiberStack<E> {
+    private static final int ELIMINATION_SLOTS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int ELIMINATION_SPINS = 64;
+
+    private final AtomicReference<Node<E>> top = new AtomicReference<>();
+    private final AtomicReferenceArray<Node<E>> elimination = new AtomicReferenceArray<>(ELIMINATION_SLOTS);
+
+    public void push(E element) {
+        Node<E> node = new Node<>(element);
+        while (true) {
+            Node<E> current = top.get();
+            node.next = current;
+            if (top.compareAndSet(current, node) || tryEliminatePush(node)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the top element.
+     *
+     * @return the top element, or null if the stack is empty.
+     */
+    public E pop() {
+        while (true) {
+            Node<E> current = top.get();
+            if (current == null) {
+                return null;
+            }
+            if (top.compareAndSet(current, current.next)) {
+                return current.item;
+            }
+            Node<E> eliminated = tryEliminatePop();
+            if (eliminated != null) {
+                return eliminated.item;
+            }
+        }
+    }
+
+    /**
+     * Returns the top element without removing it, or null if the stack is empty.
+     */
+    public E peek() {
+        Node<E> current = top.get();
+        return current == null ? null : current.item;
+    }
+
+    public boolean isEmpty() {
+        return top.get() == null;
+    }
+
+    /**
+     * Offers the node in a random slot and waits briefly for a popper to take it.
+     *
+     * @return true if a popper took the node.
+     */
+    private boolean tryEliminatePush(Node<E> node) {
+        int slot = ThreadLocalRandom.current().nextInt(ELIMINATION_SLOTS);
+        if (!elimination.compareAndSet(slot, null, node)) {
+            return false;
+        }
+        for (int i = 0; i < ELIMINATION_SPINS; i++) {
+            if (elimination.get(slot) != node) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        // Withdraw the offer; if that fails, a popper took the node in the meantime.
+        return !elimination.compareAndSet(slot, node, null);
+    }
+
+    /**
+     * Looks in a random slot for a node offered by a pusher.
+     *
+     * @return the node taken, or null if there was none.
+     */
+    private Node<E> tryEliminatePop() {
+        int slot = ThreadLocalRandom.current().nextInt(ELIMINATION_SLOTS);
+        Node<E> offered = elimination.get(slot);
+        if (offered != null && elimination.compareAndSet(slot, offered, null)) {
+            return offered;
+        }
+        return null;
+    }
+
+    private static final class Node<E> {
+        final E item;
+        Node<E> next;
+
+        Node(E item) {
+            this.item = item;
+        }
+    }
+}
+
+/**
+ * A min-priority queue of int handles with long priorities, stored in flat arrays.
+ *
+ * Handles are ints in [0, capacity), for example node ids in a graph. Because the heap also
+ * keeps a handle-to-position index, the priority of a queued handle can be changed in place
+ * (decreaseKey, increaseKey) or the handle removed, which PriorityQueue cannot do. Each level of
+ * the heap has d children per node (4 by default): the tree is shallower than a binary heap, so
+ * decreaseKey does fewer swaps, and the d children of a node are adjacent in memory. Nothing is
+ * allocated after construction.
+ *
+ * Priorities are longs. Double priorities can be stored with sortableLong, which maps doubles to
+ * longs in the same order, and read back with fromSortableLong.
+ */
+class IndexedDaryHeap {
+    private static final int DEFAULT_ARITY = 4;
+
+    private final int arity;
+    /** heap[i] is the handle at heap position i. */
+    private final int[] heap;
+    /** keys[i] is the priority of heap[i], kept next to it so sifting scans one array. */
+    private final long[] keys;
+    /** positions[h] is the heap position of handle h, or -1 if h is not queued. */
+    private final int[] positions;
+    private int size;
+
+    /**
+     * Creates an empty 4-ary heap.
+     *
+     * @param capacity the number of handles; valid handles are 0 to capacity - 1.
+     */
+    public IndexedDaryHeap(int capacity) {
+        this(capacity, DEFAULT_ARITY);
+    }
+
+    /**
+     * Creates an empty heap.
+     *
+     * @param capacity the number of handles; valid handles are 0 to capacity - 1.
+     * @param arity the number of children per node, at least 2.
+     */
+    public IndexedDaryHeap(int capacity, int arity) {
+        if (arity < 2) {
+            throw new IllegalArgumentException("Arity must be at least 2: " + arity);
+        }
+        this.arity = arity;
+        this.heap = new int[capacity];
+        this.keys = new long[capacity];
+        this.positions = new int[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Adds a handle.
+     *
+     * @throws IllegalArgumentException if the handle is already queued.
+     */
+    public void insert(int handle, long priority) {
+        if (positions[handle] >= 0) {
+            throw new IllegalArgumentException("Handle already queued: " + handle);
+        }
+        heap[size] = handle;
+        keys[size] = priority;
+        positions[handle] = size;
+        siftUp(size++);
+    }
+
+    /**
+     * Replaces the whole content of the heap with the given handles in O(n), which is faster
+     * than inserting them one at a time.
+     *
+     * @param handles the handles; must be distinct.
+     * @param priorities the priority of each handle.
+     * @param count the number of entries to use from both arrays.
+     * @throws IllegalArgumentException if a handle appears twice; the heap is left empty.
+     */
+    public void heapify(int[] handles, long[] priorities, int count) {
+        clear();
+        for (int i = 0; i < count; i++) {
+            int handle = handles[i];
+            if (positions[handle] >= 0) {
+                // size is still 0, so clear() would not see the handles written so far.
+                for (int j = 0; j < i; j++) {
+                    positions[heap[j]] = -1;
+                }
+                throw new IllegalArgumentException("Duplicate handle: " + handle);
+            }
+            heap[i] = handle;
+            keys[i] = priorities[i];
+            positions[handle] = i;
+        }
+        size = count;
+        for (int i = (size - 2) / arity; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Lowers the priority of a queued handle.
+     *
+     * @throws IllegalArgumentException if the handle is absent or the new priority is higher.
+     */
+    public void decreaseKey(int handle, long priority) {
+        int position = positionOf(handle);
+        if (priority > keys[position]) {
+            throw new IllegalArgumentException("New priority " + priority + " is higher than " + keys[position]);
+        }
+        keys[position] = priority;
+        siftUp(position);
+    }
+
+    /**
+     * Raises the priority of a queued handle.
+     *
+     * @throws IllegalArgumentException if the handle is absent or the new priority is lower.
+     */
+    public void increaseKey(int handle, long priority) {
+        int position = positionOf(handle);
+        if (priority < keys[position]) {
+            throw new IllegalArgumentException("New priority " + priority + " is lower than " + keys[position]);
+        }
+        keys[position] = priority;
+        siftDown(position);
+    }
+
+    /**
+     * Sets the priority of a handle, inserting it if absent. Handy for Dijkstra-style relaxation.
+     */
+    public void upsert(int handle, long priority) {
+        int position = positions[handle];
+        if (position < 0) {
+            insert(handle, priority);
+        } else if (priority < keys[position]) {
+            keys[position] = priority;
+            siftUp(position);
+        } else {
+            keys[position] = priority;
+            siftDown(position);
+        }
+    }
+
+    /**
+     * Removes a handle, wherever it is in the heap.
+     *
+     * @return true if the handle was queued.
+     */
+    public boolean remove(int handle) {
+        int position = positions[handle];
+        if (position < 0) {
+            return false;
+        }
+        removeAt(position);
+        return true;
+    }
+
+    /**
+     * Removes the handle with the lowest priority.
+     *
+     * @return the handle.
+     * @throws NoSuchElementException if the heap is empty.
+     */
+    public int poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        int handle = heap[0];
+        removeAt(0);
+        return handle;
+    }
+
+    /**
+     * Returns the handle with the lowest priority without removing it.
+     *
+     * @throws NoSuchElementException if the heap is empty.
+     */
+    public int peek() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return heap[0];
+    }
+
+    /**
+     * Returns the lowest priority in the heap.
+     *
+     * @throws NoSuchElementException if the heap is empty.
+     */
+    public long peekPriority() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return keys[0];
+    }
+
+    public boolean contains(int handle) {
+        return positions[handle] >= 0;
+    }
+
+    /**
+     * Returns the priority of a queued handle.
+     *
+     * @throws IllegalArgumentException if the handle is absent.
+     */
+    public long priority(int handle) {
+        return keys[positionOf(handle)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /**
+     * Maps a double to a long with the same ordering (NaN sorts above positive infinity).
+     */
+    public static long sortableLong(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * Reverses sortableLong.
+     */
+    public static double fromSortableLong(long sortable) {
+        return Double.longBitsToDouble(sortable ^ ((sortable >> 63) & Long.MAX_VALUE));
+    }
+
+    private int positionOf(int handle) {
+        int position = positions[handle];
+        if (position < 0) {
+            throw new IllegalArgumentException("Handle not queued: " + handle);
+        }
+        return position;
+    }
+
+    private void removeAt(int position) {
+        positions[heap[position]] = -1;
+        int last = --size;
+        if (position == last) {
+            return;
+        }
+        long lastKey = keys[last];
+        place(position, heap[last], lastKey);
+        if (position > 0 && lastKey < keys[(position - 1) / arity]) {
+            siftUp(position);
+        } else {
+            siftDown(position);
+        }
+    }
+
+    /**
+     * Moves the entry at the position up while it is smaller than its parent. Parents are
+     * shifted down into the hole rather than swapped, so each level costs one write.
+     */
+    private void siftUp(int position) {
+        int handle = heap[position];
+        long key = keys[position];
+        while (position > 0) {
+            int parent = (position - 1) / arity;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(position, heap[parent], keys[parent]);
+            position = parent;
+        }
+        place(position, handle, key);
+    }
+
+    private void siftDown(int position) {
+        int handle = heap[position];
+        long key = keys[position];
+        while (true) {
+            int first = position * arity + 1;
+            if (first >= size) {
+                break;
+            }
+            int last = Math.min(first + arity, size);
+            int smallest = first;
+            for (int child = first + 1; child < last; child++) {
+                if (keys[child] < keys[smallest]) {
+                    smallest = child;
+                }
+            }
+            if (keys[smallest] >= key) {
+                break;
+            }
+            place(position, heap[smallest], keys[smallest]);
+            position = smallest;
+        }
+        place(position, handle, key);
+    }
+
+    private void place(int position, int handle, long key) {
+        heap[position] = handle;
+        keys[position] = key;
+        positions[handle] = position;
+    }
+}
+
+/**
+ * A sorted map from long keys to long values, stored as a B+tree in off-heap pages.
+ *
+ * Every node is a fixed-size page inside a direct (or memory-mapped) ByteBuffer, so the tree
+ * costs the garbage collector nothing no matter how many entries it holds, and one node read
+ * brings a whole run of adjacent keys into the cache. Leaves hold up to 254 key/value pairs
+ * and are linked in both directions for range scans and floor/ceiling lookups. Pages are
+ * grouped in 4 MB chunks that are added as the tree grows.
+ *
+ * A tree created with mapped(...) lives in a file: the chunks are mappings of that file, and
+ * close() (or flush()) writes the metadata page, so reopening the file gives back the index.
+ *
+ * remove() deletes entries from their leaf without merging underfull leaves; lookups and scans
+ * skip empty leaves. This keeps deletes cheap for indexes that mostly grow.
+ *
+ * Page layout (byte offsets):
+ * <pre>
+ *   all pages:  0 type (0 = leaf, 1 = inner)   4 count:int
+ *   leaf:       8 next:long  16 prev:long  24 (key:long value:long) * count
+ *   inner:      24 child0:long  32 (key:long child:long) * count
+ *   page 0:     metadata (magic, root, page count, size, height)
+ * </pre>
+ */
+class OffHeapBPlusTree implements Closeable {
+    static final int PAGE_SIZE = 4096;
+    private static final int PAGES_PER_CHUNK = 1024;
+    private static final long CHUNK_BYTES = (long) PAGE_SIZE * PAGES_PER_CHUNK;
+    private static final long MAGIC = 0x4250545245453031L;
+    private static final byte LEAF = 0;
+    private static final byte INNER = 1;
+    private static final int HEADER = 24;
+    private static final int ENTRY = 16;
+    private static final int LEAF_CAPACITY = (PAGE_SIZE - HEADER) / ENTRY;
+    private static final int INNER_CAPACITY = (PAGE_SIZE - HEADER - 8) / ENTRY;
+    private static final long NO_PAGE = 0;
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    /**
+     * Receives entries from scan.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    private final FileChannel file;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long root;
+    private long pageCount;
+    private long size;
+    private int height;
+
+    // Result of a child split during put, kept in fields instead of returning an object.
+    private long splitKey;
+    private long splitPage;
+
+    private OffHeapBPlusTree(FileChannel file) throws IOException {
+        this.file = file;
+        if (file != null && file.size() >= PAGE_SIZE) {
+            long chunkCount = (file.size() + CHUNK_BYTES - 1) / CHUNK_BYTES;
+            for (int i = 0; i < chunkCount; i++) {
+                chunks.add(file.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_BYTES, CHUNK_BYTES));
+            }
+            ByteBuffer meta = chunks.get(0);
+            if (meta.getLong(0) != MAGIC) {
+                throw new IOException("Not a B+tree file");
+            }
+            root = meta.getLong(8);
+            pageCount = meta.getLong(16);
+            size = meta.getLong(24);
+            height = meta.getInt(32);
+        } else {
+            pageCount = 1;
+            ensureCapacity(1);
+            root = allocatePage(LEAF);
+            height = 1;
+            writeMeta();
+        }
+    }
+
+    /**
+     * Creates an empty tree in direct buffers; its contents are lost when it is discarded.
+     */
+    static OffHeapBPlusTree inMemory() {
+        try {
+            return new OffHeapBPlusTree(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Opens the tree stored in a file, or creates an empty one if the file is new or empty.
+     *
+     * @param path the backing file.
+     * @return the tree.
+     * @throws IOException if the file cannot be mapped or is not a B+tree file.
+     */
+    static OffHeapBPlusTree mapped(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new OffHeapBPlusTree(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the value for the key, or defaultValue if it is absent.
+     */
+    public long get(long key, long defaultValue) {
+        long leaf = findLeaf(key);
+        int index = searchLeaf(leaf, key);
+        return index >= 0 ? leafValue(leaf, index) : defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        return searchLeaf(findLeaf(key), key) >= 0;
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @return true if the key was new.
+     */
+    public boolean put(long key, long value) {
+        long before = size;
+        if (insert(root, height, key, value)) {
+            long newRoot = allocatePage(INNER);
+            ByteBuffer page = chunk(newRoot);
+            int base = offset(newRoot);
+            page.putInt(base + 4, 1);
+            page.putLong(base + HEADER, root);
+            page.putLong(base + HEADER + 8, splitKey);
+            page.putLong(base + HEADER + 16, splitPage);
+            root = newRoot;
+            height++;
+        }
+        return size > before;
+    }
+
+    /**
+     * Removes the key from its leaf (leaves are not merged).
+     *
+     * @return true if the key was present.
+     */
+    public boolean remove(long key) {
+        long leaf = findLeaf(key);
+        int index = searchLeaf(leaf, key);
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer page = chunk(leaf);
+        int base = offset(leaf);
+        int count = page.getInt(base + 4);
+        moveEntries(page, base + HEADER + (index + 1) * ENTRY, base + HEADER + index * ENTRY, count - index - 1);
+        page.putInt(base + 4, count - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the greatest key less than or equal to the given key.
+     */
+    public OptionalLong floorKey(long key) {
+        long leaf = findLeaf(key);
+        int index = searchLeaf(leaf, key);
+        int candidate = index >= 0 ? index : -index - 2;
+        while (candidate < 0) {
+            leaf = chunk(leaf).getLong(offset(leaf) + 16);
+            if (leaf == NO_PAGE) {
+                return OptionalLong.empty();
+            }
+            candidate = leafCount(leaf) - 1;
+        }
+        return OptionalLong.of(leafKey(leaf, candidate));
+    }
+
+    /**
+     * Returns the least key greater than or equal to the given key.
+     */
+    public OptionalLong ceilingKey(long key) {
+        long leaf = findLeaf(key);
+        int index = searchLeaf(leaf, key);
+        int candidate = index >= 0 ? index : -index - 1;
+        while (candidate >= leafCount(leaf)) {
+            leaf = chunk(leaf).getLong(offset(leaf) + 8);
+            if (leaf == NO_PAGE) {
+                return OptionalLong.empty();
+            }
+            candidate = 0;
+        }
+        return OptionalLong.of(leafKey(leaf, candidate));
+    }
+
+    /**
+     * Calls the consumer for every entry with from <= key <= to, in key order.
+     *
+     * @return the number of entries visited.
+     */
+    public long scan(long from, long to, EntryConsumer consumer) {
+        long leaf = findLeaf(from);
+        int index = searchLeaf(leaf, from);
+        index = index >= 0 ? index : -index - 1;
+        long visited = 0;
+        while (leaf != NO_PAGE) {
+            int count = leafCount(leaf);
+            for (; index < count; index++) {
+                long key = leafKey(leaf, index);
+                if (key > to) {
+                    return visited;
+                }
+                consumer.accept(key, leafValue(leaf, index));
+                visited++;
+            }
+            leaf = chunk(leaf).getLong(offset(leaf) + 8);
+            index = 0;
+        }
+        return visited;
+    }
+
+    /**
+     * Builds the tree from sorted input bottom-up, writing each page once. Much faster than
+     * repeated put for large inputs, and the pages come out fully packed. Pages left over from
+     * entries that were put and removed earlier are released first.
+     *
+     * @param keys the keys, strictly increasing.
+     * @param values the value of each key.
+     * @param count the number of entries to load.
+     * @throws IllegalStateException if the tree is not empty.
+     * @throws IllegalArgumentException if the keys are not strictly increasing.
+     */
+    public void bulkLoad(long[] keys, long[] values, int count) {
+        if (size != 0) {
+            throw new IllegalStateException("bulkLoad requires an empty tree");
+        }
+        for (int i = 1; i < count; i++) {
+            if (keys[i] <= keys[i - 1]) {
+                throw new IllegalArgumentException("Keys must be strictly increasing at index " + i);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        // Leaves are never merged, so an emptied tree can still have an inner root over empty
+        // leaves. With no entries left every page but the metadata page is garbage: start over
+        // from a fresh leaf root, and later allocations reuse the old pages.
+        pageCount = 1;
+        root = allocatePage(LEAF);
+        // Leaf level: the fresh root is the first leaf.
+        List<long[]> level = new ArrayList<>();
+        long leaf = root;
+        long previous = NO_PAGE;
+        for (int start = 0; start < count; start += LEAF_CAPACITY) {
+            if (start > 0) {
+                leaf = allocatePage(LEAF);
+                ByteBuffer prevPage = chunk(previous);
+                prevPage.putLong(offset(previous) + 8, leaf);
+                chunk(leaf).putLong(offset(leaf) + 16, previous);
+            }
+            int n = Math.min(LEAF_CAPACITY, count - start);
+            ByteBuffer page = chunk(leaf);
+            int base = offset(leaf);
+            for (int i = 0; i < n; i++) {
+                page.putLong(base + HEADER + i * ENTRY, keys[start + i]);
+                page.putLong(base + HEADER + i * ENTRY + 8, values[start + i]);
+            }
+            page.putInt(base + 4, n);
+            level.add(new long[] {keys[start], leaf});
+            previous = leaf;
+        }
+        size = count;
+        height = 1;
+        // Inner levels: each node takes up to INNER_CAPACITY + 1 children from the level below.
+        while (level.size() > 1) {
+            List<long[]> parents = new ArrayList<>();
+            for (int start = 0; start < level.size(); start += INNER_CAPACITY + 1) {
+                int n = Math.min(INNER_CAPACITY + 1, level.size() - start);
+                long inner = allocatePage(INNER);
+                ByteBuffer page = chunk(inner);
+                int base = offset(inner);
+                page.putLong(base + HEADER, level.get(start)[1]);
+                for (int i = 1; i < n; i++) {
+                    page.putLong(base + HEADER + 8 + (i - 1) * ENTRY, level.get(start + i)[0]);
+                    page.putLong(base + HEADER + 16 + (i - 1) * ENTRY, level.get(start + i)[1]);
+                }
+                page.putInt(base + 4, n - 1);
+                parents.add(new long[] {level.get(start)[0], inner});
+            }
+            level = parents;
+            height++;
+        }
+        root = level.get(0)[1];
+    }
+
+    /**
+     * Writes the metadata page and, for a mapped tree, forces all pages to the file.
+     */
+    public void flush() {
+        writeMeta();
+        if (file != null) {
+            for (ByteBuffer chunk : chunks) {
+                ((MappedByteBuffer) chunk).force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        chunks.clear();
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    /**
+     * Inserts into the subtree rooted at page. Returns true if the page split, leaving the new
+     * right sibling and its first key in splitPage and splitKey.
+     */
+    private boolean insert(long pageId, int level, long key, long value) {
+        ByteBuffer page = chunk(pageId);
+        int base = offset(pageId);
+        int count = page.getInt(base + 4);
+        if (level == 1) {
+            int index = searchLeaf(pageId, key);
+            if (index >= 0) {
+                page.putLong(base + HEADER + index * ENTRY + 8, value);
+                return false;
+            }
+            index = -index - 1;
+            size++;
+            if (count < LEAF_CAPACITY) {
+                insertLeafEntry(page, base, count, index, key, value);
+                return false;
+            }
+            splitLeaf(pageId, count);
+            // Insert into whichever half now covers the key.
+            long target = key < splitKey ? pageId : splitPage;
+            ByteBuffer targetPage = chunk(target);
+            int targetBase = offset(target);
+            int targetCount = targetPage.getInt(targetBase + 4);
+            int targetIndex = -searchLeaf(target, key) - 1;
+            insertLeafEntry(targetPage, targetBase, targetCount, targetIndex, key, value);
+            return true;
+        }
+        int childIndex = childIndex(page, base, count, key);
+        long child = page.getLong(base + HEADER + childIndex * ENTRY);
+        if (!insert(child, level - 1, key, value)) {
+            return false;
+        }
+        long newKey = splitKey;
+        long newChild = splitPage;
+        if (count < INNER_CAPACITY) {
+            insertInnerEntry(page, base, count, childIndex, newKey, newChild);
+            return false;
+        }
+        splitInner(pageId, count, childIndex, newKey, newChild);
+        return true;
+    }
+
+    private void insertLeafEntry(ByteBuffer page, int base, int count, int index, long key, long value) {
+        int position = base + HEADER + index * ENTRY;
+        moveEntries(page, position, position + ENTRY, count - index);
+        page.putLong(position, key);
+        page.putLong(position + 8, value);
+        page.putInt(base + 4, count + 1);
+    }
+
+    private void insertInnerEntry(ByteBuffer page, int base, int count, int childIndex, long key, long child) {
+        int position = base + HEADER + 8 + childIndex * ENTRY;
+        moveEntries(page, position, position + ENTRY, count - childIndex);
+        page.putLong(position, key);
+        page.putLong(position + 8, child);
+        page.putInt(base + 4, count + 1);
+    }
+
+    private void splitLeaf(long pageId, int count) {
+        long rightId = allocatePage(LEAF);
+        ByteBuffer left = chunk(pageId);
+        int leftBase = offset(pageId);
+        ByteBuffer right = chunk(rightId);
+        int rightBase = offset(rightId);
+        int keep = count / 2;
+        copyEntries(left, leftBase + HEADER + keep * ENTRY, right, rightBase + HEADER, count - keep);
+        left.putInt(leftBase + 4, keep);
+        right.putInt(rightBase + 4, count - keep);
+        long next = left.getLong(leftBase + 8);
+        right.putLong(rightBase + 8, next);
+        right.putLong(rightBase + 16, pageId);
+        left.putLong(leftBase + 8, rightId);
+        if (next != NO_PAGE) {
+            chunk(next).putLong(offset(next) + 16, rightId);
+        }
+        splitKey = right.getLong(rightBase + HEADER);
+        splitPage = rightId;
+    }
+
+    /**
+     * Splits a full inner page while inserting (key, child) after childIndex. The middle key
+     * moves up to the parent.
+     */
+    private void splitInner(long pageId, int count, int childIndex, long key, long child) {
+        // Gather the count + 1 keys and count + 2 children, then redistribute them.
+        long[] keys = new long[count + 1];
+        long[] children = new long[count + 2];
+        ByteBuffer page = chunk(pageId);
+        int base = offset(pageId);
+        children[0] = page.getLong(base + HEADER);
+        for (int i = 0, j = 0; i <= count; i++) {
+            if (i == childIndex) {
+                keys[i] = key;
+                children[i + 1] = child;
+            } else {
+                keys[i] = page.getLong(base + HEADER + 8 + j * ENTRY);
+                children[i + 1] = page.getLong(base + HEADER + 16 + j * ENTRY);
+                j++;
+            }
+        }
+        int middle = keys.length / 2;
+        long rightId = allocatePage(INNER);
+        ByteBuffer right = chunk(rightId);
+        int rightBase = offset(rightId);
+        writeInner(page, base, keys, children, 0, middle);
+        writeInner(right, rightBase, keys, children, middle + 1, keys.length);
+        splitKey = keys[middle];
+        splitPage = rightId;
+    }
+
+    private static void writeInner(ByteBuffer page, int base, long[] keys, long[] children, int from, int to) {
+        page.putLong(base + HEADER, children[from]);
+        for (int i = from; i < to; i++) {
+            page.putLong(base + HEADER + 8 + (i - from) * ENTRY, keys[i]);
+            page.putLong(base + HEADER + 16 + (i - from) * ENTRY, children[i + 1]);
+        }
+        page.putInt(base + 4, to - from);
+    }
+
+    private long findLeaf(long key) {
+        long pageId = root;
+        for (int level = height; level > 1; level--) {
+            ByteBuffer page = chunk(pageId);
+            int base = offset(pageId);
+            int index = childIndex(page, base, page.getInt(base + 4), key);
+            pageId = page.getLong(base + HEADER + index * ENTRY);
+        }
+        return pageId;
+    }
+
+    /**
+     * Returns the index of the child covering the key: the number of separator keys <= key.
+     */
+    private static int childIndex(ByteBuffer page, int base, int count, long key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (page.getLong(base + HEADER + 8 + mid * ENTRY) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary search within a leaf, with the same return convention as Arrays.binarySearch.
+     */
+    private int searchLeaf(long leaf, long key) {
+        ByteBuffer page = chunk(leaf);
+        int base = offset(leaf);
+        int low = 0;
+        int high = page.getInt(base + 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = page.getLong(base + HEADER + mid * ENTRY);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int leafCount(long leaf) {
+        return chunk(leaf).getInt(offset(leaf) + 4);
+    }
+
+    private long leafKey(long leaf, int index) {
+        return chunk(leaf).getLong(offset(leaf) + HEADER + index * ENTRY);
+    }
+
+    private long leafValue(long leaf, int index) {
+        return chunk(leaf).getLong(offset(leaf) + HEADER + index * ENTRY + 8);
+    }
+
+    // Absolute bulk put copies as if through an intermediate buffer, so
+    // overlapping shifts within one page are safe without a heap temp array.
+    private static void moveEntries(ByteBuffer page, int from, int to, int entries) {
+        if (entries <= 0) {
+            return;
+        }
+        page.put(to, page, from, entries * ENTRY);
+    }
+
+    private static void copyEntries(ByteBuffer source, int from, ByteBuffer target, int to, int entries) {
+        target.put(to, source, from, entries * ENTRY);
+    }
+
+    private long allocatePage(byte type) {
+        long pageId = pageCount++;
+        ensureCapacity(pageCount);
+        ByteBuffer page = chunk(pageId);
+        int base = offset(pageId);
+        page.put(base, ZERO_PAGE);
+        page.put(base, type);
+        return pageId;
+    }
+
+    private void ensureCapacity(long pages) {
+        while ((long) chunks.size() * PAGES_PER_CHUNK < pages) {
+            if (file == null) {
+                chunks.add(ByteBuffer.allocateDirect((int) CHUNK_BYTES));
+            } else {
+                try {
+                    chunks.add(file.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private void writeMeta() {
+        ByteBuffer meta = chunks.get(0);
+        meta.putLong(0, MAGIC);
+        meta.putLong(8, root);
+        meta.putLong(16, pageCount);
+        meta.putLong(24, size);
+        meta.putInt(32, height);
+    }
+
+    private ByteBuffer chunk(long pageId) {
+        return chunks.get((int) (pageId / PAGES_PER_CHUNK));
+    }
+
+    private static int offset(long pageId) {
+        return (int) (pageId % PAGES_PER_CHUNK) * PAGE_SIZE;
+    }
+}
+
+/**
+ * An immutable hash map: put and remove return a new map and leave the old one untouched.
+ *
+ * The map is a hash array mapped trie in the compressed CHAMP layout (Steindorfer and Vinju,
+ * 2015). Each node covers 5 bits of the key's hash and holds up to 32 slots, compacted with two
+ * bitmaps: one for entries stored inline, one for child nodes. An update copies only the nodes
+ * on the path from the root to the changed slot, O(log32 n) small arrays, and shares the rest
+ * with the previous version. Because versions never change, a reader that needs a consistent
+ * view just keeps a reference to the current version: a snapshot is O(1), and a writer can
+ * keep publishing new versions (for example through a volatile field) without blocking it.
+ *
+ * For many updates in a row, asTransient() returns a builder that mutates nodes it created
+ * itself in place, then persistent() freezes the result. Null keys are not allowed.
+ *
+ * @param <K> the key type.
+ * @param <V> the value type.
+ */
+final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int HASH_BITS = 32;
+    private static final Object NOT_FOUND = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashMap EMPTY = new PersistentHashMap<>(new BitmapNode<>(null, 0, 0, new Object[0]), 0);
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentHashMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(Object key) {
+        return getOrDefault(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object key, V defaultValue) {
+        return root.find(key, hash(key), 0, defaultValue);
+    }
+
+    public boolean containsKey(Object key) {
+        @SuppressWarnings("unchecked")
+        V value = getOrDefault(key, (V) NOT_FOUND);
+        return value != NOT_FOUND;
+    }
+
+    /**
+     * Returns a map that also maps the key to the value; this map is unchanged.
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        Change change = new Change();
+        Node<K, V> newRoot = root.put(null, key, hash(key), value, 0, change);
+        return newRoot == root ? this : new PersistentHashMap<>(newRoot, size + change.sizeDelta);
+    }
+
+    /**
+     * Returns a map without the key; this map is unchanged.
+     */
+    public PersistentHashMap<K, V> remove(Object key) {
+        Change change = new Change();
+        Node<K, V> newRoot = root.remove(null, key, hash(key), 0, change);
+        return newRoot == root ? this : new PersistentHashMap<>(newRoot, size + change.sizeDelta);
+    }
+
+    /**
+     * Returns a builder that starts from this map. The builder's changes do not affect this map.
+     */
+    public Transient<K, V> asTransient() {
+        return new Transient<>(root, size);
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * Iterates over the entries in hash order. The entries are immutable.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        forEach((key, value) -> joiner.add(key + "=" + value));
+        return joiner.toString();
+    }
+
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A mutable builder over a PersistentHashMap. Nodes created by the builder are tagged with its
+     * edit token and updated in place on later changes; nodes shared with earlier versions are
+     * copied as usual. Not thread-safe, and unusable after persistent() has been called.
+     */
+    static final class Transient<K, V> {
+        private Object edit = new Object();
+        private Node<K, V> root;
+        private int size;
+
+        private Transient(Node<K, V> root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public Transient<K, V> put(K key, V value) {
+            Change change = new Change();
+            root = root.put(checkEdit(), key, hash(key), value, 0, change);
+            size += change.sizeDelta;
+            return this;
+        }
+
+        public Transient<K, V> remove(Object key) {
+            Change change = new Change();
+            root = root.remove(checkEdit(), key, hash(key), 0, change);
+            size += change.sizeDelta;
+            return this;
+        }
+
+        public V get(Object key) {
+            checkEdit();
+            return root.find(key, hash(key), 0, null);
+        }
+
+        public int size() {
+            checkEdit();
+            return size;
+        }
+
+        /**
+         * Freezes the builder's content into a persistent map and retires the builder.
+         */
+        public PersistentHashMap<K, V> persistent() {
+            checkEdit();
+            edit = null;
+            return new PersistentHashMap<>(root, size);
+        }
+
+        private Object checkEdit() {
+            if (edit == null) {
+                throw new IllegalStateException("Transient used after persistent()");
+            }
+            return edit;
+        }
+    }
+
+    /**
+     * Collects the size change of one update on its way back up the trie.
+     */
+    private static final class Change {
+        int sizeDelta;
+    }
+
+    private abstract static class Node<K, V> {
+        abstract V find(Object key, int hash, int shift, V notFound);
+
+        abstract Node<K, V> put(Object edit, K key, int hash, V value, int shift, Change change);
+
+        abstract Node<K, V> remove(Object edit, Object key, int hash, int shift, Change change);
+
+        abstract void forEach(BiConsumer<? super K, ? super V> action);
+
+        /** Number of inline entries. */
+        abstract int payloadArity();
+
+        /** Number of child nodes. */
+        abstract int nodeArity();
+
+        abstract K keyAt(int index);
+
+        abstract V valueAt(int index);
+
+        abstract Node<K, V> nodeAt(int index);
+    }
+
+    /**
+     * A CHAMP node: entries stored inline at the front of the array as key/value pairs, child
+     * nodes stored at the back in reverse order.
+     */
+    private static final class BitmapNode<K, V> extends Node<K, V> {
+        final Object edit;
+        int dataMap;
+        int nodeMap;
+        Object[] content;
+
+        BitmapNode(Object edit, int dataMap, int nodeMap, Object[] content) {
+            this.edit = edit;
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.content = content;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V find(Object key, int hash, int shift, V notFound) {
+            int bit = bitpos(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = dataIndex(bit);
+                return key.equals(content[2 * index]) ? (V) content[2 * index + 1] : notFound;
+            }
+            if ((nodeMap & bit) != 0) {
+                return nodeAt(nodeIndex(bit)).find(key, hash, shift + BITS, notFound);
+            }
+            return notFound;
+        }
+
+        @Override
+        Node<K, V> put(Object edit, K key, int hash, V value, int shift, Change change) {
+            int bit = bitpos(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = dataIndex(bit);
+                K existing = keyAt(index);
+                if (existing.equals(key)) {
+                    if (valueAt(index) == value) {
+                        return this;
+                    }
+                    BitmapNode<K, V> target = editable(edit);
+                    target.content[2 * index + 1] = value;
+                    return target;
+                }
+                // Two keys share this slot: push both down into a new child node.
+                Node<K, V> child = mergeTwo(edit, existing, hash(existing), valueAt(index),
+                        key, hash, value, shift + BITS);
+                change.sizeDelta = 1;
+                return migrateInlineToNode(edit, bit, index, child);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node<K, V> child = nodeAt(index);
+                Node<K, V> newChild = child.put(edit, key, hash, value, shift + BITS, change);
+                if (newChild == child) {
+                    return this;
+                }
+                BitmapNode<K, V> target = editable(edit);
+                target.content[content.length - 1 - index] = newChild;
+                return target;
+            }
+            change.sizeDelta = 1;
+            int index = dataIndex(bit);
+            Object[] updated = new Object[content.length + 2];
+            System.arraycopy(content, 0, updated, 0, 2 * index);
+            updated[2 * index] = key;
+            updated[2 * index + 1] = value;
+            System.arraycopy(content, 2 * index, updated, 2 * index + 2, content.length - 2 * index);
+            return new BitmapNode<>(edit, dataMap | bit, nodeMap, updated);
+        }
+
+        @Override
+        Node<K, V> remove(Object edit, Object key, int hash, int shift, Change change) {
+            int bit = bitpos(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = dataIndex(bit);
+                if (!keyAt(index).equals(key)) {
+                    return this;
+                }
+                change.sizeDelta = -1;
+                if (payloadArity() == 2 && nodeArity() == 0) {
+                    // Keep the other entry in a node addressed as if at the root, so a parent can
+                    // inline it again (or it can become the root itself).
+                    int other = 1 - index;
+                    K otherKey = keyAt(other);
+                    int newDataMap = shift == 0 ? dataMap ^ bit : bitpos(hash(otherKey), 0);
+                    return new BitmapNode<>(edit, newDataMap, 0, new Object[] {otherKey, valueAt(other)});
+                }
+                Object[] updated = new Object[content.length - 2];
+                System.arraycopy(content, 0, updated, 0, 2 * index);
+                System.arraycopy(content, 2 * index + 2, updated, 2 * index, content.length - 2 * index - 2);
+                return new BitmapNode<>(edit, dataMap ^ bit, nodeMap, updated);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = nodeIndex(bit);
+                Node<K, V> child = nodeAt(index);
+                Node<K, V> newChild = child.remove(edit, key, hash, shift + BITS, change);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild.payloadArity() == 1 && newChild.nodeArity() == 0) {
+                    if (payloadArity() == 0 && nodeArity() == 1) {
+                        // This node would only wrap a single entry: let the parent inline it.
+                        return newChild;
+                    }
+                    return migrateNodeToInline(edit, bit, index, newChild.keyAt(0), newChild.valueAt(0));
+                }
+                BitmapNode<K, V> target = editable(edit);
+                target.content[content.length - 1 - index] = newChild;
+                return target;
+            }
+            return this;
+        }
+
+        @Override
+        void forEach(BiConsumer<? super K, ? super V> action) {
+            for (int i = 0; i < payloadArity(); i++) {
+                action.accept(keyAt(i), valueAt(i));
+            }
+            for (int i = 0; i < nodeArity(); i++) {
+                nodeAt(i).forEach(action);
+            }
+        }
+
+        @Override
+        int payloadArity() {
+            return Integer.bitCount(dataMap);
+        }
+
+        @Override
+        int nodeArity() {
+            return Integer.bitCount(nodeMap);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        K keyAt(int index) {
+            return (K) content[2 * index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V valueAt(int index) {
+            return (V) content[2 * index + 1];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Node<K, V> nodeAt(int index) {
+            return (Node<K, V>) content[content.length - 1 - index];
+        }
+
+        private int dataIndex(int bit) {
+            return Integer.bitCount(dataMap & (bit - 1));
+        }
+
+        private int nodeIndex(int bit) {
+            return Integer.bitCount(nodeMap & (bit - 1));
+        }
+
+        /**
+         * Returns this node if the caller's transient owns it, otherwise a copy owned by the caller.
+         */
+        private BitmapNode<K, V> editable(Object edit) {
+            if (edit != null && this.edit == edit) {
+                return this;
+            }
+            return new BitmapNode<>(edit, dataMap, nodeMap, content.clone());
+        }
+
+        private Node<K, V> migrateInlineToNode(Object edit, int bit, int dataIndex, Node<K, V> child) {
+            int nodeIndex = nodeIndex(bit);
+            Object[] updated = new Object[content.length - 1];
+            int removeAt = 2 * dataIndex;
+            int insertAt = content.length - 2 - nodeIndex;
+            System.arraycopy(content, 0, updated, 0, removeAt);
+            System.arraycopy(content, removeAt + 2, updated, removeAt, insertAt - removeAt);
+            updated[insertAt] = child;
+            System.arraycopy(content, insertAt + 2, updated, insertAt + 1, content.length - insertAt - 2);
+            return new BitmapNode<>(edit, dataMap ^ bit, nodeMap | bit, updated);
+        }
+
+        private Node<K, V> migrateNodeToInline(Object edit, int bit, int nodeIndex, K key, V value) {
+            int dataIndex = dataIndex(bit);
+            Object[] updated = new Object[content.length + 1];
+            int removeAt = content.length - 1 - nodeIndex;
+            int insertAt = 2 * dataIndex;
+            System.arraycopy(content, 0, updated, 0, insertAt);
+            updated[insertAt] = key;
+            updated[insertAt + 1] = value;
+            System.arraycopy(content, insertAt, updated, insertAt + 2, removeAt - insertAt);
+            System.arraycopy(content, removeAt + 1, updated, removeAt + 2, content.length - removeAt - 1);
+            return new BitmapNode<>(edit, dataMap | bit, nodeMap ^ bit, updated);
+        }
+
+        private static <K, V> Node<K, V> mergeTwo(Object edit, K key1, int hash1, V value1,
+                                                  K key2, int hash2, V value2, int shift) {
+            if (shift >= HASH_BITS) {
+                return new CollisionNode<>(hash1, new Object[] {key1, value1, key2, value2});
+            }
+            int mask1 = (hash1 >>> shift) & MASK;
+            int mask2 = (hash2 >>> shift) & MASK;
+            if (mask1 != mask2) {
+                int dataMap = (1 << mask1) | (1 << mask2);
+                Object[] content = mask1 < mask2
+                        ? new Object[] {key1, value1, key2, value2}
+                        : new Object[] {key2, value2, key1, value1};
+                return new BitmapNode<>(edit, dataMap, 0, content);
+            }
+            Node<K, V> child = mergeTwo(edit, key1, hash1, value1, key2, hash2, value2, shift + BITS);
+            return new BitmapNode<>(edit, 0, 1 << mask1, new Object[] {child});
+        }
+
+        private static int bitpos(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+    }
+
+    /**
+     * Holds keys whose 32-bit hashes are identical, below the last level of bitmap nodes.
+     */
+    private static final class CollisionNode<K, V> extends Node<K, V> {
+        final int hash;
+        final Object[] entries;
+
+        CollisionNode(int hash, Object[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V find(Object key, int hash, int shift, V notFound) {
+            int index = indexOf(key);
+            return index < 0 ? notFound : (V) entries[index + 1];
+        }
+
+        @Override
+        Node<K, V> put(Object edit, K key, int hash, V value, int shift, Change change) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (entries[index + 1] == value) {
+                    return this;
+                }
+                Object[] updated = entries.clone();
+                updated[index + 1] = value;
+                return new CollisionNode<>(this.hash, updated);
+            }
+            change.sizeDelta = 1;
+            Object[] updated = Arrays.copyOf(entries, entries.length + 2);
+            updated[entries.length] = key;
+            updated[entries.length + 1] = value;
+            return new CollisionNode<>(this.hash, updated);
+        }
+
+        @Override
+        Node<K, V> remove(Object edit, Object key, int hash, int shift, Change change) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            change.sizeDelta = -1;
+            if (entries.length == 4) {
+                int other = index == 0 ? 2 : 0;
+                return new BitmapNode<>(edit, 1 << (this.hash & MASK), 0,
+                        new Object[] {entries[other], entries[other + 1]});
+            }
+            Object[] updated = new Object[entries.length - 2];
+            System.arraycopy(entries, 0, updated, 0, index);
+            System.arraycopy(entries, index + 2, updated, index, entries.length - index - 2);
+            return new CollisionNode<>(this.hash, updated);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void forEach(BiConsumer<? super K, ? super V> action) {
+            for (int i = 0; i < entries.length; i += 2) {
+                action.accept((K) entries[i], (V) entries[i + 1]);
+            }
+        }
+
+        @Override
+        int payloadArity() {
+            return entries.length / 2;
+        }
+
+        @Override
+        int nodeArity() {
+            return 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        K keyAt(int index) {
+            return (K) entries[2 * index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V valueAt(int index) {
+            return (V) entries[2 * index + 1];
+        }
+
+        @Override
+        Node<K, V> nodeAt(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i += 2) {
+                if (entries[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Depth-first iterator keeping one cursor per trie level.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Deque<Node<K, V>> nodes = new ArrayDeque<>();
+        private final Deque<int[]> cursors = new ArrayDeque<>();
+        private Node<K, V> current;
+        private int entryIndex;
+
+        EntryIterator(Node<K, V> root) {
+            current = root;
+            advanceToEntry();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            // Not Map.entry(), which rejects the null values this map accepts.
+            Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<>(
+                    current.keyAt(entryIndex), current.valueAt(entryIndex));
+            entryIndex++;
+            advanceToEntry();
+            return entry;
+        }
+
+        /**
+         * Moves to the next inline entry: the rest of the current node's entries first, then its
+         * children, then back up to the parent's remaining children.
+         */
+        private void advanceToEntry() {
+            while (current != null) {
+                if (entryIndex < current.payloadArity()) {
+                    return;
+                }
+                if (current.nodeArity() > 0) {
+                    nodes.push(current);
+                    cursors.push(new int[] {1});
+                    current = current.nodeAt(0);
+                    entryIndex = 0;
+                    continue;
+                }
+                current = null;
+                while (!nodes.isEmpty()) {
+                    Node<K, V> parent = nodes.peek();
+                    int[] cursor = cursors.peek();
+                    if (cursor[0] < parent.nodeArity()) {
+                        current = parent.nodeAt(cursor[0]++);
+                        entryIndex = 0;
+                        break;
+                    }
+                    nodes.pop();
+                    cursors.pop();
+                }
+            }
+        }
+    }
+}
+
+/**
+ * An immutable hash set built on PersistentHashMap; add and remove return new versions.
+ *
+ * @param <E> the element type.
+ */
+final class PersistentHashSet<E> implements Iterable<E> {
+    @SuppressWarnings("rawtypes")
+    private static final PersistentHashSet EMPTY = new PersistentHashSet<>(PersistentHashMap.empty());
+
+    private final PersistentHashMap<E, Boolean> map;
+
+    private PersistentHashSet(PersistentHashMap<E, Boolean> map) {
+        this.map = map;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> PersistentHashSet<E> empty() {
+        return EMPTY;
+    }
+
+    public PersistentHashSet<E> add(E element) {
+        PersistentHashMap<E, Boolean> updated = map.put(element, Boolean.TRUE);
+        return updated == map ? this : new PersistentHashSet<>(updated);
+    }
+
+    public PersistentHashSet<E> remove(Object element) {
+        PersistentHashMap<E, Boolean> updated = map.remove(element);
+        return updated == map ? this : new PersistentHashSet<>(updated);
+    }
+
+    public boolean contains(Object element) {
+        return map.containsKey(element);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Returns a builder for many additions and removals in a row.
+     */
+    public Transient<E> asTransient() {
+        return new Transient<>(map.asTransient());
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<Map.Entry<E, Boolean>> entries = map.iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        map.forEach((element, present) -> joiner.add(String.valueOf(element)));
+        return joiner.toString();
+    }
+
+    /**
+     * A mutable builder over a PersistentHashSet; see PersistentHashMap.Transient.
+     */
+    static final class Transient<E> {
+        private final PersistentHashMap.Transient<E, Boolean> map;
+
+        private Transient(PersistentHashMap.Transient<E, Boolean> map) {
+            this.map = map;
+        }
+
+        public Transient<E> add(E element) {
+            map.put(element, Boolean.TRUE);
+            return this;
+        }
+
+        public Transient<E> remove(Object element) {
+            map.remove(element);
+            return this;
+        }
+
+        public boolean contains(Object element) {
+            return map.get(element) != null;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public PersistentHashSet<E> persistent() {
+            return new PersistentHashSet<>(map.persistent());
+        }
+    }
+}
+
+/**
+ * A List stored as a tiered vector (Goodrich and Kloss, 1999): a row of equally sized chunks,
+ * each a circular buffer.
+ *
+ * Every chunk except the last is full, so get(i) is two array loads: chunk i / B, slot i % B.
+ * Inserting at an index shifts elements within one chunk (at most B / 2 moves, to whichever end
+ * is closer) and then moves one element across each later chunk boundary, which is O(1) per
+ * chunk because a circular buffer can add at its front. The chunk size B is kept near sqrt(n),
+ * so insert and remove at any index cost O(sqrt n), instead of O(n) shifting in ArrayList or
+ * O(n) node hopping in LinkedList, while elements still sit in contiguous arrays for iteration.
+ *
+ * @param <E> the element type.
+ */
+class TieredList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int MIN_CHUNK_BITS = 4;
+
+    private int chunkBits = MIN_CHUNK_BITS;
+    private Object[][] chunks = new Object[4][];
+    private int[] heads = new int[4];
+    private int chunkCount;
+    private int size;
+
+    public TieredList() {
+    }
+
+    public TieredList(Collection<? extends E> elements) {
+        for (E element : elements) {
+            add(element);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        int chunk = index >>> chunkBits;
+        return (E) chunks[chunk][(heads[chunk] + index) & mask()];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        Objects.checkIndex(index, size);
+        int chunk = index >>> chunkBits;
+        int slot = (heads[chunk] + index) & mask();
+        E previous = (E) chunks[chunk][slot];
+        chunks[chunk][slot] = element;
+        return previous;
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (size == chunkCount << chunkBits) {
+            appendChunk();
+        }
+        int chunk = chunkCount - 1;
+        chunks[chunk][(heads[chunk] + size) & mask()] = element;
+        size++;
+        modCount++;
+        rebalance();
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        Objects.checkIndex(index, size + 1);
+        if (index == size) {
+            add(element);
+            return;
+        }
+        if (size == chunkCount << chunkBits) {
+            appendChunk();
+        }
+        int target = index >>> chunkBits;
+        int mask = mask();
+        int last = chunkCount - 1;
+        // Ripple from the back: each full chunk hands its last element to the next chunk's front.
+        int lastLength = size - (last << chunkBits);
+        for (int chunk = last; chunk > target; chunk--) {
+            int previous = chunk - 1;
+            int previousTail = (heads[previous] + mask) & mask;
+            heads[chunk] = (heads[chunk] - 1) & mask;
+            chunks[chunk][heads[chunk]] = chunks[previous][previousTail];
+            chunks[previous][previousTail] = null;
+        }
+        int length = target == last ? lastLength : (1 << chunkBits) - 1;
+        insertInChunk(target, index & mask, length, element);
+        size++;
+        modCount++;
+        rebalance();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        Objects.checkIndex(index, size);
+        int target = index >>> chunkBits;
+        int mask = mask();
+        int last = chunkCount - 1;
+        int length = target == last ? size - (last << chunkBits) : 1 << chunkBits;
+        E removed = (E) removeFromChunk(target, index & mask, length);
+        // Ripple to the back: each later chunk hands its first element to the previous chunk.
+        for (int chunk = target + 1; chunk <= last; chunk++) {
+            int previous = chunk - 1;
+            int previousTail = (heads[previous] + mask) & mask;
+            chunks[previous][previousTail] = chunks[chunk][heads[chunk]];
+            chunks[chunk][heads[chunk]] = null;
+            heads[chunk] = (heads[chunk] + 1) & mask;
+        }
+        size--;
+        modCount++;
+        if (size == last << chunkBits) {
+            chunks[last] = null;
+            chunkCount--;
+        }
+        rebalance();
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        chunkBits = MIN_CHUNK_BITS;
+        chunks = new Object[4][];
+        heads = new int[4];
+        chunkCount = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Returns an iterator that walks each chunk's array directly instead of going through get().
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new ChunkIterator();
+    }
+
+    /**
+     * Visits elements chunk by chunk with plain array loops.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super E> action) {
+        int expectedModCount = modCount;
+        int mask = mask();
+        int remaining = size;
+        for (int chunk = 0; chunk < chunkCount && remaining > 0; chunk++) {
+            Object[] elements = chunks[chunk];
+            int head = heads[chunk];
+            int length = Math.min(remaining, 1 << chunkBits);
+            for (int i = 0; i < length; i++) {
+                action.accept((E) elements[(head + i) & mask]);
+            }
+            remaining -= length;
+        }
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    private int mask() {
+        return (1 << chunkBits) - 1;
+    }
+
+    private final class ChunkIterator implements Iterator<E> {
+        private int cursor;
+        private int lastReturned = -1;
+        private int expectedModCount = modCount;
+        private Object[] elements;
+        private int head;
+        private int offset;
+        private int mask;
+        private int chunk;
+
+        ChunkIterator() {
+            moveTo(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (cursor >= size) {
+                throw new NoSuchElementException();
+            }
+            if (offset > mask) {
+                chunk++;
+                elements = chunks[chunk];
+                head = heads[chunk];
+                offset = 0;
+            }
+            E element = (E) elements[(head + offset) & mask];
+            offset++;
+            lastReturned = cursor++;
+            return element;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            TieredList.this.remove(lastReturned);
+            expectedModCount = modCount;
+            moveTo(lastReturned);
+            lastReturned = -1;
+        }
+
+        /**
+         * Points the iterator at an index again after a removal, which may have rotated chunks
+         * or changed the chunk size.
+         */
+        private void moveTo(int index) {
+            cursor = index;
+            mask = mask();
+            chunk = index >>> chunkBits;
+            offset = index & mask;
+            elements = chunk < chunkCount ? chunks[chunk] : null;
+            head = chunk < chunkCount ? heads[chunk] : 0;
+        }
+    }
+
+    private void appendChunk() {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            heads = Arrays.copyOf(heads, chunkCount * 2);
+        }
+        chunks[chunkCount] = new Object[1 << chunkBits];
+        heads[chunkCount] = 0;
+        chunkCount++;
+    }
+
+    /**
+     * Inserts into a chunk holding length elements (length < B), moving the shorter side.
+     */
+    private void insertInChunk(int chunk, int offset, int length, Object element) {
+        Object[] elements = chunks[chunk];
+        int mask = mask();
+        int head = heads[chunk];
+        if (offset < length - offset) {
+            head = (head - 1) & mask;
+            for (int i = 0; i < offset; i++) {
+                elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+            }
+            heads[chunk] = head;
+        } else {
+            for (int i = length; i > offset; i--) {
+                elements[(head + i) & mask] = elements[(head + i - 1) & mask];
+            }
+        }
+        elements[(head + offset) & mask] = element;
+    }
+
+    /**
+     * Removes from a chunk holding length elements, moving the shorter side and leaving the
+     * freed slot at the back of the chunk (after the last element).
+     */
+    private Object removeFromChunk(int chunk, int offset, int length) {
+        Object[] elements = chunks[chunk];
+        int mask = mask();
+        int head = heads[chunk];
+        Object removed = elements[(head + offset) & mask];
+        if (offset < length - offset) {
+            // Closing the gap from the front frees the old head slot, which in a full ring is
+            // also the slot just after the last element.
+            for (int i = offset; i > 0; i--) {
+                elements[(head + i) & mask] = elements[(head + i - 1) & mask];
+            }
+            elements[head] = null;
+            heads[chunk] = (head + 1) & mask;
+        } else {
+            for (int i = offset; i < length - 1; i++) {
+                elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+            }
+            elements[(head + length - 1) & mask] = null;
+        }
+        return removed;
+    }
+
+    /**
+     * Keeps the chunk size near sqrt(size): doubles it when there are more than twice as many
+     * chunks as elements per chunk, halves it when there are fewer than a quarter as many.
+     */
+    private void rebalance() {
+        int chunkSize = 1 << chunkBits;
+        if (chunkCount > 2 * chunkSize) {
+            rebuild(chunkBits + 1);
+        } else if (chunkBits > MIN_CHUNK_BITS && chunkCount < chunkSize / 8) {
+            rebuild(chunkBits - 1);
+        }
+    }
+
+    private void rebuild(int newChunkBits) {
+        Object[] all = toArray();
+        int newChunkSize = 1 << newChunkBits;
+        int newChunkCount = (size + newChunkSize - 1) >>> newChunkBits;
+        int capacity = Math.max(4, Integer.highestOneBit(Math.max(1, newChunkCount)) * 2);
+        Object[][] newChunks = new Object[capacity][];
+        for (int chunk = 0; chunk < newChunkCount; chunk++) {
+            newChunks[chunk] = new Object[newChunkSize];
+            int from = chunk << newChunkBits;
+            System.arraycopy(all, from, newChunks[chunk], 0, Math.min(newChunkSize, size - from));
+        }
+        chunkBits = newChunkBits;
+        chunks = newChunks;
+        heads = new int[capacity];
+        chunkCount = newChunkCount;
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] result = new Object[size];
+        int mask = mask();
+        for (int chunk = 0, copied = 0; copied < size; chunk++) {
+            int length = Math.min(size - copied, 1 << chunkBits);
+            int head = heads[chunk];
+            int firstPart = Math.min(length, (1 << chunkBits) - head);
+            System.arraycopy(chunks[chunk], head, result, copied, firstPart);
+            System.arraycopy(chunks[chunk], 0, result, copied + firstPart, length - firstPart);
+            copied += length;
+        }
+        return result;
+    }
+}
+
+/**
+ * A sorted set of ints compressed in the style of Roaring bitmaps (Lemire et al., 2016).
+ *
+ * The high 16 bits of each value select a chunk, and each chunk stores its low 16 bits in
+ * whichever container is smallest for its contents: a sorted char[] for up to 4096 values, a
+ * 65536-bit bitmap above that, or a list of runs (start, length) for ranges. Sparse IDs cost
+ * about 2 bytes each, dense ones 1 bit each, and long ranges almost nothing, versus a tree node
+ * plus a boxed Integer per element in TreeSet<Integer>. Set operations work chunk by chunk,
+ * with whole 64-bit words at a time on bitmaps.
+ *
+ * Iteration, rank and select follow signed int order, like TreeSet<Integer>. toByteArray()
+ * writes the Roaring portable format, so other Roaring implementations can read it.
+ */
+class RoaringIntSet implements Iterable<Integer> {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+    private static final int COOKIE_NO_RUNS = 12346;
+    private static final int COOKIE = 12347;
+    private static final int NO_OFFSET_THRESHOLD = 4;
+
+    // Chunk keys are the high 16 bits with the sign bit flipped, so unsigned key order is
+    // signed value order.
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int count;
+
+    public boolean add(int value) {
+        char key = keyOf(value);
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add((char) value);
+        return containers[index].cardinality() != before;
+    }
+
+    /**
+     * Adds every value from first to last, inclusive, as runs.
+     */
+    public void addRange(int first, int last) {
+        if (first > last) {
+            throw new IllegalArgumentException("first > last: " + first + " > " + last);
+        }
+        for (long start = first; start <= last; ) {
+            int value = (int) start;
+            long chunkEnd = Math.min(last, (start | 0xFFFF));
+            char key = keyOf(value);
+            int index = indexOf(key);
+            RunContainer range = new RunContainer();
+            range.appendRun((char) value, (char) chunkEnd);
+            if (index < 0) {
+                insertContainer(-index - 1, key, range.shrink());
+            } else {
+                containers[index] = union(containers[index], range);
+            }
+            start = chunkEnd + 1;
+        }
+    }
+
+    public boolean remove(int value) {
+        int index = indexOf(keyOf(value));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        Container updated = container.remove((char) value);
+        if (updated.cardinality() == 0) {
+            removeContainer(index);
+        } else {
+            containers[index] = updated;
+        }
+        return updated.cardinality() != before;
+    }
+
+    public boolean contains(int value) {
+        int index = indexOf(keyOf(value));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * Returns the number of values; a set can hold all 2^32 ints, hence long.
+     */
+    public long cardinality() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns how many values in the set are less than or equal to the given value.
+     */
+    public long rank(int value) {
+        char key = keyOf(value);
+        long rank = 0;
+        for (int i = 0; i < count && keys[i] <= key; i++) {
+            rank += keys[i] < key ? containers[i].cardinality() : containers[i].rank((char) value);
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the value at the given position in sorted order (0 is the smallest).
+     *
+     * @throws IndexOutOfBoundsException if position is negative or not less than cardinality().
+     */
+    public int select(long position) {
+        if (position >= 0) {
+            long remaining = position;
+            for (int i = 0; i < count; i++) {
+                int cardinality = containers[i].cardinality();
+                if (remaining < cardinality) {
+                    return valueOf(keys[i], containers[i].select((int) remaining));
+                }
+                remaining -= cardinality;
+            }
+        }
+        throw new IndexOutOfBoundsException("Position " + position + " out of " + cardinality());
+    }
+
+    /**
+     * Converts chunks to run containers wherever that is smaller; worth calling once a set that
+     * was built value by value is complete.
+     */
+    public void runOptimize() {
+        for (int i = 0; i < count; i++) {
+            containers[i] = containers[i].runOptimize();
+        }
+    }
+
+    public static RoaringIntSet union(RoaringIntSet a, RoaringIntSet b) {
+        RoaringIntSet result = new RoaringIntSet();
+        int i = 0;
+        int j = 0;
+        while (i < a.count || j < b.count) {
+            if (j == b.count || (i < a.count && a.keys[i] < b.keys[j])) {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.count || b.keys[j] < a.keys[i]) {
+                result.appendContainer(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(a.keys[i], union(a.containers[i], b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public static RoaringIntSet intersection(RoaringIntSet a, RoaringIntSet b) {
+        RoaringIntSet result = new RoaringIntSet();
+        int i = 0;
+        int j = 0;
+        while (i < a.count && j < b.count) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (b.keys[j] < a.keys[i]) {
+                j++;
+            } else {
+                Container both = intersection(a.containers[i], b.containers[j]);
+                if (both.cardinality() > 0) {
+                    result.appendContainer(a.keys[i], both);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the values of a that are not in b.
+     */
+    public static RoaringIntSet difference(RoaringIntSet a, RoaringIntSet b) {
+        RoaringIntSet result = new RoaringIntSet();
+        int j = 0;
+        for (int i = 0; i < a.count; i++) {
+            while (j < b.count && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j < b.count && b.keys[j] == a.keys[i]) {
+                Container rest = difference(a.containers[i], b.containers[j]);
+                if (rest.cardinality() > 0) {
+                    result.appendContainer(a.keys[i], rest);
+                }
+            } else {
+                result.appendContainer(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes every element to the action in ascending order, without boxing. Named apart from
+     * Iterable.forEach so a lambda argument is never ambiguous.
+     */
+    public void forEachInt(IntConsumer action) {
+        char[] lows = new char[1 << 16];
+        for (int i = 0; i < count; i++) {
+            int filled = containers[i].fill(lows);
+            for (int k = 0; k < filled; k++) {
+                action.accept(valueOf(keys[i], lows[k]));
+            }
+        }
+    }
+
+    /**
+     * Iterates in ascending order; each chunk is expanded into a reused buffer.
+     */
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private final char[] lows = new char[1 << 16];
+            private int chunk = -1;
+            private int filled;
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (position == filled) {
+                    if (chunk + 1 >= count) {
+                        return false;
+                    }
+                    chunk++;
+                    filled = containers[chunk].fill(lows);
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return valueOf(keys[chunk], lows[position++]);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        PrimitiveIterator.OfInt values = iterator();
+        for (int shown = 0; values.hasNext(); shown++) {
+            if (shown == 20) {
+                joiner.add("... (" + cardinality() + " total)");
+                break;
+            }
+            joiner.add(Integer.toString(values.nextInt()));
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Serializes the set in the Roaring portable format (little-endian), readable by the
+     * C, Go and Java Roaring libraries.
+     */
+    public byte[] toByteArray() {
+        // The format orders chunks by unsigned high bits: non-negative values come first.
+        int[] order = new int[count];
+        int firstNonNegative = indexOf((char) 0x8000);
+        firstNonNegative = firstNonNegative < 0 ? -firstNonNegative - 1 : firstNonNegative;
+        for (int i = 0; i < count; i++) {
+            order[i] = (firstNonNegative + i) % count;
+        }
+        boolean hasRuns = false;
+        for (int i = 0; i < count; i++) {
+            hasRuns |= containers[i] instanceof RunContainer;
+        }
+        int headerSize = hasRuns ? 4 + (count + 7) / 8 : 8;
+        headerSize += 4 * count;
+        if (!hasRuns || count >= NO_OFFSET_THRESHOLD) {
+            headerSize += 4 * count;
+        }
+        int size = headerSize;
+        for (int i = 0; i < count; i++) {
+            size += containers[i].serializedSize();
+        }
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        if (hasRuns) {
+            out.putInt(COOKIE | ((count - 1) << 16));
+            byte[] runFlags = new byte[(count + 7) / 8];
+            for (int i = 0; i < count; i++) {
+                if (containers[order[i]] instanceof RunContainer) {
+                    runFlags[i / 8] |= (byte) (1 << (i % 8));
+                }
+            }
+            out.put(runFlags);
+        } else {
+            out.putInt(COOKIE_NO_RUNS);
+            out.putInt(count);
+        }
+        for (int i = 0; i < count; i++) {
+            out.putChar((char) (keys[order[i]] ^ 0x8000));
+            out.putChar((char) (containers[order[i]].cardinality() - 1));
+        }
+        if (!hasRuns || count >= NO_OFFSET_THRESHOLD) {
+            int offset = headerSize;
+            for (int i = 0; i < count; i++) {
+                out.putInt(offset);
+                offset += containers[order[i]].serializedSize();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            containers[order[i]].writeTo(out);
+        }
+        return out.array();
+    }
+
+    /**
+     * Reads a set written in the Roaring portable format.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid serialized set.
+     */
+    public static RoaringIntSet fromByteArray(byte[] bytes) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int cookie = in.getInt();
+            int size;
+            byte[] runFlags = null;
+            if ((cookie & 0xFFFF) == COOKIE) {
+                size = (cookie >>> 16) + 1;
+                runFlags = new byte[(size + 7) / 8];
+                in.get(runFlags);
+            } else if (cookie == COOKIE_NO_RUNS) {
+                size = in.getInt();
+            } else {
+                throw new IllegalArgumentException("Not a serialized Roaring bitmap (cookie " + cookie + ")");
+            }
+            char[] highs = new char[size];
+            int[] cardinalities = new int[size];
+            for (int i = 0; i < size; i++) {
+                highs[i] = in.getChar();
+                cardinalities[i] = in.getChar() + 1;
+            }
+            if (runFlags == null || size >= NO_OFFSET_THRESHOLD) {
+                in.position(in.position() + 4 * size);
+            }
+            RoaringIntSet result = new RoaringIntSet();
+            Container[] read = new Container[size];
+            for (int i = 0; i < size; i++) {
+                if (runFlags != null && (runFlags[i / 8] & (1 << (i % 8))) != 0) {
+                    read[i] = RunContainer.readFrom(in);
+                } else if (cardinalities[i] <= ARRAY_MAX) {
+                    read[i] = ArrayContainer.readFrom(in, cardinalities[i]);
+                } else {
+                    read[i] = BitmapContainer.readFrom(in);
+                }
+            }
+            // Back to signed order: chunks with the high bit set (negative values) come first.
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < size; i++) {
+                    if ((highs[i] >= 0x8000) == (pass == 0)) {
+                        result.appendContainer((char) (highs[i] ^ 0x8000), read[i]);
+                    }
+                }
+            }
+            return result;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated serialized Roaring bitmap", e);
+        }
+    }
+
+    private static char keyOf(int value) {
+        return (char) ((value >>> 16) ^ 0x8000);
+    }
+
+    private static int valueOf(char key, char low) {
+        return ((key ^ 0x8000) << 16) | low;
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, count, key);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            containers = Arrays.copyOf(containers, count * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, count - index);
+        System.arraycopy(containers, index, containers, index + 1, count - index);
+        keys[index] = key;
+        containers[index] = container;
+        count++;
+    }
+
+    private void appendContainer(char key, Container container) {
+        insertContainer(count, key, container);
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, count - index - 1);
+        count--;
+        containers[count] = null;
+    }
+
+    // Pairwise container operations. Mixed pairs are reduced to the cheapest common form:
+    // filter an array by membership, or combine bitmap words.
+
+    private static Container union(Container a, Container b) {
+        if (a instanceof RunContainer && b instanceof RunContainer) {
+            return ((RunContainer) a).union((RunContainer) b).shrink();
+        }
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer) {
+            ArrayContainer x = (ArrayContainer) a;
+            ArrayContainer y = (ArrayContainer) b;
+            if (x.size + y.size <= ARRAY_MAX) {
+                return x.union(y);
+            }
+        }
+        long[] words = a.toWords();
+        b.orInto(words);
+        Container result = Container.fromWords(words);
+        // Keep ranges compact when a run was involved, e.g. addRange over existing values.
+        return a instanceof RunContainer || b instanceof RunContainer ? result.runOptimize() : result;
+    }
+
+    private static Container intersection(Container a, Container b) {
+        if (a instanceof RunContainer && b instanceof RunContainer) {
+            return ((RunContainer) a).intersection((RunContainer) b).shrink();
+        }
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, true);
+        }
+        if (b instanceof ArrayContainer) {
+            return ((ArrayContainer) b).filter(a, true);
+        }
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            words[w] &= other[w];
+        }
+        return Container.fromWords(words);
+    }
+
+    private static Container difference(Container a, Container b) {
+        if (a instanceof RunContainer && b instanceof RunContainer) {
+            return ((RunContainer) a).difference((RunContainer) b).shrink();
+        }
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, false);
+        }
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            words[w] &= ~other[w];
+        }
+        return Container.fromWords(words);
+    }
+
+    /**
+     * The low 16 bits of one chunk. Updates return the container to use from then on, which is
+     * a different type when the contents outgrow the current one.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        /** Number of values less than or equal to low. */
+        abstract int rank(char low);
+
+        abstract char select(int position);
+
+        /** Writes the values in ascending order into lows and returns how many there are. */
+        abstract int fill(char[] lows);
+
+        /** Returns a fresh 1024-word bitmap of the values. */
+        abstract long[] toWords();
+
+        abstract void orInto(long[] words);
+
+        abstract Container runOptimize();
+
+        abstract Container copy();
+
+        abstract int serializedSize();
+
+        abstract void writeTo(ByteBuffer out);
+
+        static Container fromWords(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+            return cardinality <= ARRAY_MAX ? bitmap.toArrayContainer() : bitmap;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int size;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                return this;
+            }
+            if (size == ARRAY_MAX) {
+                return toBitmap().add(low);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(4, Math.min(ARRAY_MAX, size * 2)));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, size - index - 1);
+                size--;
+            }
+            return this;
+        }
+
+        @Override
+        int rank(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+
+        @Override
+        char select(int position) {
+            return values[position];
+        }
+
+        @Override
+        int fill(char[] lows) {
+            System.arraycopy(values, 0, lows, 0, size);
+            return size;
+        }
+
+        @Override
+        long[] toWords() {
+            long[] words = new long[BITMAP_WORDS];
+            orInto(words);
+            return words;
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < size; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        @Override
+        Container runOptimize() {
+            int runs = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            if (4 * runs + 2 >= 2 * size) {
+                return this;
+            }
+            RunContainer result = new RunContainer();
+            for (int i = 0; i < size; ) {
+                int end = i;
+                while (end + 1 < size && values[end + 1] == values[end] + 1) {
+                    end++;
+                }
+                result.appendRun(values[i], values[end]);
+                i = end + 1;
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, size), size);
+        }
+
+        @Override
+        int serializedSize() {
+            return 2 * size;
+        }
+
+        @Override
+        void writeTo(ByteBuffer out) {
+            for (int i = 0; i < size; i++) {
+                out.putChar(values[i]);
+            }
+        }
+
+        static ArrayContainer readFrom(ByteBuffer in, int cardinality) {
+            char[] values = new char[cardinality];
+            for (int i = 0; i < cardinality; i++) {
+                values[i] = in.getChar();
+            }
+            return new ArrayContainer(values, cardinality);
+        }
+
+        BitmapContainer toBitmap() {
+            return new BitmapContainer(toWords(), size);
+        }
+
+        ArrayContainer union(ArrayContainer other) {
+            char[] merged = new char[size + other.size];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < size && j < other.size) {
+                char x = values[i];
+                char y = other.values[j];
+                merged[n++] = x <= y ? x : y;
+                if (x <= y) {
+                    i++;
+                }
+                if (y <= x) {
+                    j++;
+                }
+            }
+            while (i < size) {
+                merged[n++] = values[i++];
+            }
+            while (j < other.size) {
+                merged[n++] = other.values[j++];
+            }
+            return new ArrayContainer(merged, n);
+        }
+
+        /**
+         * Keeps the values that are (keep = true) or are not (keep = false) in the other container.
+         */
+        ArrayContainer filter(Container other, boolean keep) {
+            char[] kept = new char[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (other.contains(values[i]) == keep) {
+                    kept[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(kept, n);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words;
+        int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                words[low >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                words[low >>> 6] &= ~bit;
+                cardinality--;
+                if (cardinality <= ARRAY_MAX) {
+                    return toArrayContainer();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        int rank(char low) {
+            int word = low >>> 6;
+            int rank = 0;
+            for (int w = 0; w < word; w++) {
+                rank += Long.bitCount(words[w]);
+            }
+            // 2L << 63 overflows to 0, and 0 - 1 is the all-ones mask we want there.
+            return rank + Long.bitCount(words[word] & ((2L << low) - 1));
+        }
+
+        @Override
+        char select(int position) {
+            int remaining = position;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                int bits = Long.bitCount(words[w]);
+                if (remaining < bits) {
+                    long word = words[w];
+                    for (int k = 0; k < remaining; k++) {
+                        word &= word - 1;
+                    }
+                    return (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                }
+                remaining -= bits;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        int fill(char[] lows) {
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    lows[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        long[] toWords() {
+            return words.clone();
+        }
+
+        @Override
+        void orInto(long[] target) {
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                target[w] |= words[w];
+            }
+        }
+
+        @Override
+        Container runOptimize() {
+            int runs = 0;
+            long previous = 0;
+            for (long word : words) {
+                // A run starts at each set bit whose lower neighbour (possibly in the previous
+                // word) is clear.
+                runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            if (2 + 4 * runs >= 8 * BITMAP_WORDS) {
+                return this;
+            }
+            RunContainer result = new RunContainer();
+            int low = 0;
+            while (low < 1 << 16) {
+                int start = nextSetBit(low);
+                if (start < 0) {
+                    break;
+                }
+                int end = nextClearBit(start);
+                result.appendRun((char) start, (char) (end - 1));
+                low = end;
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        int serializedSize() {
+            return 8 * BITMAP_WORDS;
+        }
+
+        @Override
+        void writeTo(ByteBuffer out) {
+            for (long word : words) {
+                out.putLong(word);
+            }
+        }
+
+        static BitmapContainer readFrom(ByteBuffer in) {
+            long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] = in.getLong();
+                cardinality += Long.bitCount(words[w]);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        ArrayContainer toArrayContainer() {
+            char[] values = new char[cardinality];
+            fill(values);
+            return new ArrayContainer(values, cardinality);
+        }
+
+        private int nextSetBit(int from) {
+            int w = from >>> 6;
+            long word = words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        private int nextClearBit(int from) {
+            int w = from >>> 6;
+            long word = ~words[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return 1 << 16;
+                }
+                word = ~words[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+    }
+
+    /**
+     * Sorted, non-adjacent runs stored as (start, length - 1) pairs, as in the portable format.
+     */
+    private static final class RunContainer extends Container {
+        char[] runs = new char[8];
+        int runCount;
+        int cardinality;
+
+        private int start(int run) {
+            return runs[2 * run];
+        }
+
+        private int end(int run) {
+            return runs[2 * run] + runs[2 * run + 1];
+        }
+
+        private void setRun(int run, int start, int end) {
+            runs[2 * run] = (char) start;
+            runs[2 * run + 1] = (char) (end - start);
+        }
+
+        /**
+         * Appends a run after all existing ones, merging it with the last run if they touch.
+         */
+        void appendRun(int start, int end) {
+            if (runCount > 0 && start <= end(runCount - 1) + 1) {
+                int last = runCount - 1;
+                int oldEnd = end(last);
+                if (end > oldEnd) {
+                    setRun(last, start(last), end);
+                    cardinality += end - oldEnd;
+                }
+                return;
+            }
+            if (2 * runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            setRun(runCount++, start, end);
+            cardinality += end - start + 1;
+        }
+
+        /** Index of the last run starting at or before low, or -1. */
+        private int floorRun(char low) {
+            int lo = 0;
+            int hi = runCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (start(mid) <= low) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            int run = floorRun(low);
+            return run >= 0 && low <= end(run);
+        }
+
+        @Override
+        Container add(char low) {
+            int run = floorRun(low);
+            if (run >= 0 && low <= end(run)) {
+                return this;
+            }
+            boolean joinsPrevious = run >= 0 && end(run) + 1 == low;
+            boolean joinsNext = run + 1 < runCount && start(run + 1) == low + 1;
+            if (joinsPrevious && joinsNext) {
+                setRun(run, start(run), end(run + 1));
+                deleteRun(run + 1);
+            } else if (joinsPrevious) {
+                setRun(run, start(run), low);
+            } else if (joinsNext) {
+                setRun(run + 1, low, end(run + 1));
+            } else {
+                insertRun(run + 1, low, low);
+            }
+            cardinality++;
+            return shrink();
+        }
+
+        @Override
+        Container remove(char low) {
+            int run = floorRun(low);
+            if (run < 0 || low > end(run)) {
+                return this;
+            }
+            int start = start(run);
+            int end = end(run);
+            if (start == end) {
+                deleteRun(run);
+            } else if (low == start) {
+                setRun(run, start + 1, end);
+            } else if (low == end) {
+                setRun(run, start, end - 1);
+            } else {
+                setRun(run, start, low - 1);
+                insertRun(run + 1, low + 1, end);
+            }
+            cardinality--;
+            return shrink();
+        }
+
+        @Override
+        int rank(char low) {
+            int rank = 0;
+            for (int run = 0; run < runCount && start(run) <= low; run++) {
+                rank += Math.min(end(run), low) - start(run) + 1;
+            }
+            return rank;
+        }
+
+        @Override
+        char select(int position) {
+            int remaining = position;
+            for (int run = 0; run < runCount; run++) {
+                int length = end(run) - start(run) + 1;
+                if (remaining < length) {
+                    return (char) (start(run) + remaining);
+                }
+                remaining -= length;
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        int fill(char[] lows) {
+            int n = 0;
+            for (int run = 0; run < runCount; run++) {
+                for (int value = start(run), end = end(run); value <= end; value++) {
+                    lows[n++] = (char) value;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        long[] toWords() {
+            long[] words = new long[BITMAP_WORDS];
+            orInto(words);
+            return words;
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int run = 0; run < runCount; run++) {
+                int start = start(run);
+                int end = end(run);
+                int firstWord = start >>> 6;
+                int lastWord = end >>> 6;
+                long firstMask = -1L << start;
+                long lastMask = -1L >>> (63 - (end & 63));
+                if (firstWord == lastWord) {
+                    words[firstWord] |= firstMask & lastMask;
+                } else {
+                    words[firstWord] |= firstMask;
+                    for (int w = firstWord + 1; w < lastWord; w++) {
+                        words[w] = -1L;
+                    }
+                    words[lastWord] |= lastMask;
+                }
+            }
+        }
+
+        @Override
+        Container runOptimize() {
+            return this;
+        }
+
+        @Override
+        Container copy() {
+            RunContainer copy = new RunContainer();
+            copy.runs = Arrays.copyOf(runs, Math.max(2, 2 * runCount));
+            copy.runCount = runCount;
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        int serializedSize() {
+            return 2 + 4 * runCount;
+        }
+
+        @Override
+        void writeTo(ByteBuffer out) {
+            out.putChar((char) runCount);
+            for (int i = 0; i < 2 * runCount; i++) {
+                out.putChar(runs[i]);
+            }
+        }
+
+        static RunContainer readFrom(ByteBuffer in) {
+            RunContainer result = new RunContainer();
+            int runCount = in.getChar();
+            for (int run = 0; run < runCount; run++) {
+                int start = in.getChar();
+                result.appendRun(start, start + in.getChar());
+            }
+            return result;
+        }
+
+        /**
+         * Returns this container, or an array or bitmap container if that would be smaller.
+         */
+        Container shrink() {
+            int runBytes = 2 + 4 * runCount;
+            int otherBytes = cardinality <= ARRAY_MAX ? 2 * cardinality : 8 * BITMAP_WORDS;
+            if (runBytes <= otherBytes) {
+                return this;
+            }
+            return cardinality <= ARRAY_MAX
+                    ? new BitmapContainer(toWords(), cardinality).toArrayContainer()
+                    : new BitmapContainer(toWords(), cardinality);
+        }
+
+        RunContainer union(RunContainer other) {
+            RunContainer result = new RunContainer();
+            int i = 0;
+            int j = 0;
+            while (i < runCount || j < other.runCount) {
+                if (j == other.runCount || (i < runCount && start(i) <= other.start(j))) {
+                    result.appendRun(start(i), end(i));
+                    i++;
+                } else {
+                    result.appendRun(other.start(j), other.end(j));
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        RunContainer intersection(RunContainer other) {
+            RunContainer result = new RunContainer();
+            int i = 0;
+            int j = 0;
+            while (i < runCount && j < other.runCount) {
+                int start = Math.max(start(i), other.start(j));
+                int end = Math.min(end(i), other.end(j));
+                if (start <= end) {
+                    result.appendRun(start, end);
+                }
+                if (end(i) < other.end(j)) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        RunContainer difference(RunContainer other) {
+            RunContainer result = new RunContainer();
+            int j = 0;
+            for (int i = 0; i < runCount; i++) {
+                int start = start(i);
+                int end = end(i);
+                while (j < other.runCount && other.end(j) < start) {
+                    j++;
+                }
+                int k = j;
+                while (start <= end && k < other.runCount && other.start(k) <= end) {
+                    if (other.start(k) > start) {
+                        result.appendRun(start, other.start(k) - 1);
+                    }
+                    start = Math.max(start, other.end(k) + 1);
+                    k++;
+                }
+                if (start <= end) {
+                    result.appendRun(start, end);
+                }
+            }
+            return result;
+        }
+
+        private void insertRun(int run, int start, int end) {
+            if (2 * runCount == runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            System.arraycopy(runs, 2 * run, runs, 2 * run + 2, 2 * (runCount - run));
+            runCount++;
+            setRun(run, start, end);
+        }
+
+        private void deleteRun(int run) {
+            System.arraycopy(runs, 2 * run + 2, runs, 2 * run, 2 * (runCount - run - 1));
+            runCount--;
+        }
+    }
+}
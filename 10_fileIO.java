@@ -14,14 +14,134 @@
  * 3. Checking file existence:
  *    - Uses the File class to verify that the file exists before reading.
  *
+ * 4. Memory-mapped reading:
+ *    - Maps the file with FileChannel.map and scans the raw bytes for newlines.
+ *    - Hands each line to a LineHandler as a byte range; no String is built unless asked for.
+ *    - Files larger than one mapping window (2 GB) are mapped window by window.
+ *
+ * 5. Parallel chunked processing:
+ *    - Splits the file into byte ranges aligned to line boundaries.
+ *    - Runs a per-line function over every chunk on a ForkJoinPool and merges the results,
+ *      optionally keeping the original line order.
+ *
+ * 6. Group-commit writing:
+ *    - GroupCommitWriter accepts records from many threads into a bounded queue.
+ *    - A background thread batches them into large direct ByteBuffer writes and syncs
+ *      according to the chosen durability mode.
+ *
+ * 7. Streaming writes:
+ *    - writeToFile overloads take an Iterator, a Stream or a Flow.Publisher of lines.
+ *    - ChannelLineWriter encodes each line straight into one reusable direct buffer, so only
+ *      one line is held in memory at a time.
+ *
+ * 8. Following a growing file:
+ *    - FileFollower delivers each complete line appended to a file, in the manner of "tail -f".
+ *    - Handles truncation and rotation, and waits on a WatchService with a polling fallback.
+ *
+ * 9. Block-compressed files:
+ *    - BlockCompressedWriter compresses blocks of lines with LzCodec on a thread pool.
+ *    - BlockCompressedReader reads any line through a footer index by decompressing one block.
+ *
+ * 10. Segmented log:
+ *    - SegmentedLog appends checksummed records to rolling segment files with sparse
+ *      memory-mapped indexes, reads them back by offset and deletes old segments.
+ *
+ * 11. Batch file I/O:
+ *    - BatchFileIO reads or writes many files at once with AsynchronousFileChannel, keeping a
+ *      bounded number of them in flight.
+ *
+ * 12. External sorting:
+ *    - ExternalSorter sorts files larger than the heap: sorted runs are spilled to temporary
+ *      files and merged with a priority queue.
+ *
  * To compile: javac 10_fileIO.java
  * To run:     java 10_fileIO
+ * Self-check: java 10_fileIO --test
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class FileIODemo {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--test")) {
+            System.exit(FileIOChecks.run() ? 0 : 1);
+        }
+        // The larger example files go in a temporary directory that is removed at the end.
+        Path workDirectory;
+        try {
+            workDirectory = Files.createTempDirectory("file-io-demo");
+        } catch (IOException e) {
+            System.err.println("Error while creating temporary directory: " + e.getMessage());
+            return;
+        }
+        try {
+            runExamples(workDirectory);
+        } finally {
+            try {
+                deleteRecursively(workDirectory);
+            } catch (IOException e) {
+                System.err.println("Error while deleting " + workDirectory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void runExamples(Path workDirectory) {
         String fileName = "example.txt";
         // Data to be written into the file.
         String[] lines = {
@@ -35,6 +155,169 @@ public class FileIODemo {
 
         // Read and display the data from the file.
         readFromFile(fileName);
+
+        // Stream generated lines to a file without ever holding them all in memory.
+        String exportName = workDirectory.resolve("example-export.txt").toString();
+        System.out.println("Streaming lines to file: " + exportName);
+        try {
+            long bytes = writeToFile(exportName, IntStream.range(0, 100_000).mapToObj(i -> "row " + i));
+            System.out.println("Bytes written: " + bytes);
+        } catch (IOException e) {
+            System.err.println("Error while streaming to file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Store the same rows block-compressed and jump straight to one of them.
+        String archiveName = workDirectory.resolve("example-export.lzb").toString();
+        System.out.println("Writing block-compressed file: " + archiveName);
+        try {
+            try (BlockCompressedWriter writer = new BlockCompressedWriter(archiveName,
+                    BlockCompressedWriter.DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors())) {
+                for (int i = 0; i < 100_000; i++) {
+                    writer.writeLine("row " + i);
+                }
+            }
+            System.out.println("Compressed size: " + Files.size(Path.of(archiveName)) + " bytes");
+            try (BlockCompressedReader reader = new BlockCompressedReader(archiveName)) {
+                System.out.println("Lines: " + reader.lineCount() + ", blocks: " + reader.blockCount());
+                System.out.println("Line 54321: " + reader.readLine(54321));
+            }
+        } catch (IOException e) {
+            System.err.println("Error while using compressed file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Read the same file through a memory mapping, decoding each line only to print it.
+        System.out.println("Reading memory-mapped file: " + fileName);
+        try {
+            long count = readFromFileMapped(fileName,
+                    (buffer, start, end) -> System.out.println(decodeLine(buffer, start, end)));
+            System.out.println("Lines scanned: " + count);
+        } catch (IOException e) {
+            System.err.println("Error while mapping file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Sort the exported rows with a memory budget far smaller than the file.
+        String sortedName = workDirectory.resolve("example-export-sorted.txt").toString();
+        System.out.println("Externally sorting " + exportName + " into " + sortedName);
+        try {
+            ExternalSorter<String> sorter = new ExternalSorter<>(ExternalSorter.LINES,
+                    Comparator.naturalOrder(), 1024 * 1024, workDirectory);
+            ExternalSorter.Stats stats = sorter.sort(Path.of(exportName), Path.of(sortedName));
+            System.out.println(stats);
+            System.out.println("First sorted lines: " + Files.readAllLines(Path.of(sortedName)).subList(0, 3));
+        } catch (IOException e) {
+            System.err.println("Error while sorting file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Follow the file: the first poll delivers the existing lines, the second only the new one.
+        System.out.println("Following file: " + fileName);
+        try (FileFollower follower = new FileFollower(fileName, false,
+                (buffer, start, end) -> System.out.println("+ " + decodeLine(buffer, start, end)))) {
+            follower.poll();
+            Files.writeString(Path.of(fileName), "This line was appended.\nThis one is incomplete",
+                    StandardOpenOption.APPEND);
+            System.out.println("Lines after append: " + follower.poll());
+        } catch (IOException e) {
+            System.err.println("Error while following file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Append records to a segmented log and read them back by offset.
+        String logDirectory = workDirectory.resolve("example-segments").toString();
+        System.out.println("Appending to segmented log: " + logDirectory);
+        try (SegmentedLog log = new SegmentedLog(logDirectory, 4096, 256)) {
+            long first = log.append("first record".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < 1000; i++) {
+                log.append(("record " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            System.out.println("Offsets: " + log.startOffset() + " to " + (log.endOffset() - 1)
+                    + " in " + log.segmentCount() + " segments");
+            System.out.println("Record at offset " + first + ": "
+                    + new String(log.read(first), StandardCharsets.UTF_8));
+            log.scan(log.endOffset() - 3, log.endOffset(), (offset, record) ->
+                    System.out.println("-- " + offset + ": " + StandardCharsets.UTF_8.decode(record)));
+            log.retainBytes(16 * 1024);
+            System.out.println("After retention, first offset: " + log.startOffset());
+        } catch (IOException e) {
+            System.err.println("Error while using segmented log: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Write and read back a batch of small files with many operations in flight.
+        Path batchDirectory = workDirectory.resolve("example-batch");
+        System.out.println("Batch writing and reading files in: " + batchDirectory);
+        try (BatchFileIO batch = new BatchFileIO(64)) {
+            Files.createDirectories(batchDirectory);
+            Map<Path, byte[]> contents = new TreeMap<>();
+            for (int i = 0; i < 500; i++) {
+                contents.put(batchDirectory.resolve("file-" + i + ".txt"),
+                        ("contents of file " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            AtomicLong bytesRead = new AtomicLong();
+            batch.writeAll(contents, result -> { });
+            int failed = batch.readAll(contents.keySet(), result -> {
+                if (result.error == null) {
+                    bytesRead.addAndGet(result.data.length);
+                }
+            });
+            System.out.println("Files: " + contents.size() + ", bytes read: " + bytesRead + ", failed: " + failed);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error during batch I/O: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Process the lines in parallel, keeping the original order of the results.
+        System.out.println("Processing file in parallel: " + fileName);
+        try {
+            List<Integer> lengths = processFileParallel(fileName, String::length, true);
+            System.out.println("Line lengths: " + lengths);
+        } catch (IOException e) {
+            System.err.println("Error while processing file: " + e.getMessage());
+        }
+        System.out.println();
+
+        // Append records from several threads through a single group-commit writer.
+        String logName = workDirectory.resolve("example-log.txt").toString();
+        System.out.println("Group-commit writing to file: " + logName);
+        try (GroupCommitWriter writer = new GroupCommitWriter(logName, GroupCommitWriter.Durability.PER_BATCH, 0)) {
+            Thread[] producers = new Thread[4];
+            for (int t = 0; t < producers.length; t++) {
+                int id = t;
+                producers[t] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        writer.writeLine("producer " + id + " record " + i);
+                    }
+                });
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            writer.flush();
+            System.out.println(writer.stats());
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error while writing log: " + e.getMessage());
+        }
+        System.out.println();
+    }
+
+    /**
+     * Deletes a directory and everything below it, deepest entries first.
+     *
+     * @param directory the directory to delete.
+     * @throws IOException if an entry cannot be deleted.
+     */
+    static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = walk.sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
     }
 
     /**
@@ -58,6 +341,108 @@ public class FileIODemo {
         System.out.println();
     }
 
+    /**
+     * Writes every line produced by an iterator to a file, replacing its contents.
+     * Lines are encoded (UTF-8) directly into a reusable direct buffer, so only one line is held
+     * in memory at a time.
+     *
+     * @param fileName the name of the file to write to.
+     * @param lines the lines to write; each is followed by a newline.
+     * @return the number of bytes written.
+     * @throws IOException if the file cannot be written.
+     */
+    public static long writeToFile(String fileName, Iterator<? extends CharSequence> lines) throws IOException {
+        try (ChannelLineWriter writer = new ChannelLineWriter(fileName)) {
+            while (lines.hasNext()) {
+                writer.writeLine(lines.next());
+            }
+            return writer.close(true);
+        }
+    }
+
+    /**
+     * Writes every line of a stream to a file, replacing its contents.
+     * The stream is consumed sequentially in encounter order but is not closed.
+     *
+     * @param fileName the name of the file to write to.
+     * @param lines the lines to write; each is followed by a newline.
+     * @return the number of bytes written.
+     * @throws IOException if the file cannot be written.
+     */
+    public static long writeToFile(String fileName, Stream<? extends CharSequence> lines) throws IOException {
+        return writeToFile(fileName, lines.iterator());
+    }
+
+    /**
+     * Writes every line published by a Flow.Publisher to a file, replacing its contents, and
+     * blocks until the publisher completes. Lines are requested in small batches so a fast
+     * publisher cannot run ahead of the disk.
+     *
+     * @param fileName the name of the file to write to.
+     * @param lines the publisher of the lines; each is followed by a newline.
+     * @return the number of bytes written.
+     * @throws IOException if the file cannot be written or the publisher signals an error.
+     */
+    public static long writeToFile(String fileName, Flow.Publisher<? extends CharSequence> lines) throws IOException {
+        ChannelLineWriter writer = new ChannelLineWriter(fileName);
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        lines.subscribe(new Flow.Subscriber<CharSequence>() {
+            private static final int BATCH = 256;
+            private Flow.Subscription subscription;
+            private int outstanding;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                outstanding = BATCH;
+                subscription.request(BATCH);
+            }
+
+            @Override
+            public void onNext(CharSequence line) {
+                if (done.isDone()) {
+                    return;
+                }
+                try {
+                    writer.writeLine(line);
+                } catch (IOException e) {
+                    subscription.cancel();
+                    done.completeExceptionally(e);
+                    return;
+                }
+                if (--outstanding == 0) {
+                    outstanding = BATCH;
+                    subscription.request(BATCH);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                done.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                try {
+                    done.complete(writer.close(true));
+                } catch (IOException e) {
+                    done.completeExceptionally(e);
+                }
+            }
+        });
+        try {
+            return done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the publisher");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            writer.close();
+        }
+    }
+
     /**
      * Reads the contents of a file and prints them to the console.
      *
@@ -71,4 +456,2755 @@ public class FileIODemo {
             System.out.println("File not found: " + fileName);
             return;
         }
-        // Using try-with-resources to ensure the Buf
+        // Using try-with-resources to ensure the BufferedReader is closed automatically.
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println(line);
+            }
+        } catch (IOException e) {
+            System.err.println("Error while reading from file: " + e.getMessage());
+        }
+        System.out.println();
+    }
+
+    /**
+     * Largest region mapped at once. A single MappedByteBuffer is indexed by int,
+     * so one mapping can never exceed Integer.MAX_VALUE bytes.
+     */
+    static final long MAX_MAP_WINDOW = Integer.MAX_VALUE;
+
+    /**
+     * Reads a file through a memory mapping and hands every line to the handler as a byte range.
+     * Lines are split on '\n'; a trailing '\r' is excluded from the range. No String is created
+     * unless the handler calls decodeLine itself.
+     *
+     * @param fileName the name of the file to read from.
+     * @param handler the callback receiving each line.
+     * @return the number of lines delivered.
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public static long readFromFileMapped(String fileName, LineHandler handler) throws IOException {
+        return readFromFileMapped(fileName, handler, MAX_MAP_WINDOW);
+    }
+
+    /**
+     * Same as readFromFileMapped(String, LineHandler) with an explicit mapping window size.
+     * When the file is larger than the window, the next window starts at the first byte of the
+     * line that did not fit, so no line is ever split across two handler calls.
+     *
+     * @param fileName the name of the file to read from.
+     * @param handler the callback receiving each line.
+     * @param windowSize the maximum number of bytes mapped at once.
+     * @return the number of lines delivered.
+     * @throws IOException if the file cannot be mapped or a line is longer than the window.
+     */
+    static long readFromFileMapped(String fileName, LineHandler handler, long windowSize) throws IOException {
+        if (windowSize <= 0 || windowSize > MAX_MAP_WINDOW) {
+            throw new IllegalArgumentException("Invalid mapping window: " + windowSize);
+        }
+        long lines = 0;
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+            while (position < fileSize) {
+                long length = Math.min(windowSize, fileSize - position);
+                boolean lastWindow = position + length == fileSize;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int limit = (int) length;
+                int lineStart = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (buffer.get(i) == '\n') {
+                        handler.onLine(buffer, lineStart, trimCarriageReturn(buffer, lineStart, i));
+                        lines++;
+                        lineStart = i + 1;
+                    }
+                }
+                if (lastWindow) {
+                    // The final line may not end with a newline.
+                    if (lineStart < limit) {
+                        handler.onLine(buffer, lineStart, trimCarriageReturn(buffer, lineStart, limit));
+                        lines++;
+                    }
+                    break;
+                }
+                if (lineStart == 0) {
+                    throw new IOException("Line at offset " + position + " is longer than the mapping window");
+                }
+                // Re-map starting at the partial line so it is delivered whole by the next window.
+                position += lineStart;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Smallest chunk handed to a single task; below this the splitting overhead dominates.
+     */
+    static final long MIN_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Applies a function to every line of a file in parallel on the common ForkJoinPool.
+     *
+     * @param fileName the name of the file to read from.
+     * @param lineFunction the function applied to each line; null results are dropped.
+     * @param keepOrder whether the results must follow the order of the lines in the file.
+     * @param <R> the type of the per-line result.
+     * @return the merged results of all chunks.
+     * @throws IOException if the file cannot be read.
+     */
+    public static <R> List<R> processFileParallel(String fileName, Function<String, R> lineFunction,
+                                                  boolean keepOrder) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        return processFileParallel(fileName, lineFunction, keepOrder, pool, pool.getParallelism() * 4);
+    }
+
+    /**
+     * Applies a function to every line of a file in parallel.
+     * The file is split into roughly equal byte ranges whose boundaries are moved forward to the
+     * next newline, so every line belongs to exactly one chunk. Each chunk is memory-mapped and
+     * scanned by its own task.
+     *
+     * @param fileName the name of the file to read from.
+     * @param lineFunction the function applied to each line; null results are dropped.
+     * @param keepOrder whether the results must follow the order of the lines in the file.
+     * @param pool the pool running the chunk tasks.
+     * @param targetChunks the desired number of chunks.
+     * @param <R> the type of the per-line result.
+     * @return the merged results of all chunks.
+     * @throws IOException if the file cannot be read.
+     */
+    public static <R> List<R> processFileParallel(String fileName, Function<String, R> lineFunction,
+                                                  boolean keepOrder, ForkJoinPool pool,
+                                                  int targetChunks) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long[] bounds = splitAtLines(channel, targetChunks);
+            Queue<R> unordered = keepOrder ? null : new ConcurrentLinkedQueue<>();
+            List<R> ordered = pool.invoke(new ChunkTask<>(channel, bounds, 0, bounds.length - 1,
+                    lineFunction, unordered));
+            return keepOrder ? ordered : new ArrayList<>(unordered);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Computes chunk boundaries aligned to line starts.
+     *
+     * @return offsets b[0] = 0 < b[1] < ... < b[n] = size; chunk i is [b[i], b[i + 1]).
+     */
+    static long[] splitAtLines(FileChannel channel, int targetChunks) throws IOException {
+        long size = channel.size();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, size / Math.max(1, targetChunks));
+        chunkSize = Math.min(chunkSize, MAX_MAP_WINDOW / 2);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long position = chunkSize;
+        while (position < size) {
+            long lineStart = nextLineStart(channel, position, probe);
+            if (lineStart >= size) {
+                break;
+            }
+            if (lineStart - bounds.get(bounds.size() - 1) > MAX_MAP_WINDOW) {
+                throw new IOException("Line near offset " + position + " is longer than the mapping window");
+            }
+            bounds.add(lineStart);
+            position = lineStart + chunkSize;
+        }
+        if (size - bounds.get(bounds.size() - 1) > MAX_MAP_WINDOW) {
+            throw new IOException("Last line is longer than the mapping window");
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset just after the first newline at or after position, or the file size.
+     */
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        while (true) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Fork-join task covering the chunks [from, to). It halves the range until a single chunk is
+     * left, then maps and scans that chunk. Ordered results are concatenated left to right on the
+     * way back up; unordered results go straight into the shared queue.
+     */
+    private static class ChunkTask<R> extends RecursiveTask<List<R>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Function<String, R> lineFunction;
+        private final Queue<R> unordered;
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to,
+                  Function<String, R> lineFunction, Queue<R> unordered) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.lineFunction = lineFunction;
+            this.unordered = unordered;
+        }
+
+        @Override
+        protected List<R> compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ChunkTask<R> left = new ChunkTask<>(channel, bounds, from, mid, lineFunction, unordered);
+                ChunkTask<R> right = new ChunkTask<>(channel, bounds, mid, to, lineFunction, unordered);
+                left.fork();
+                List<R> rightResult = right.compute();
+                List<R> leftResult = left.join();
+                if (unordered == null) {
+                    leftResult.addAll(rightResult);
+                }
+                return leftResult;
+            }
+            List<R> results = new ArrayList<>();
+            if (from == to) {
+                return results;
+            }
+            long start = bounds[from];
+            int length = (int) (bounds[to] - start);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                Queue<R> sink = unordered;
+                int lineStart = 0;
+                for (int i = 0; i <= length; i++) {
+                    if (i == length ? lineStart < length : buffer.get(i) == '\n') {
+                        R result = lineFunction.apply(
+                                decodeLine(buffer, lineStart, trimCarriageReturn(buffer, lineStart, i)));
+                        if (result != null) {
+                            if (sink == null) {
+                                results.add(result);
+                            } else {
+                                sink.add(result);
+                            }
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Decodes a line range produced by readFromFileMapped into a String (UTF-8).
+     *
+     * @param buffer the buffer passed to the handler.
+     * @param start the first byte of the line (inclusive).
+     * @param end the last byte of the line (exclusive).
+     * @return the decoded line.
+     */
+    public static String decodeLine(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the end of the line with a trailing carriage return removed.
+     */
+    private static int trimCarriageReturn(ByteBuffer buffer, int start, int end) {
+        return (end > start && buffer.get(end - 1) == '\r') ? end - 1 : end;
+    }
+}
+
+/**
+ * Callback used by FileIODemo.readFromFileMapped.
+ * Each line is reported as the byte range [start, end) of the buffer. The buffer is only
+ * valid for the duration of the call and must not be modified.
+ */
+@FunctionalInterface
+interface LineHandler {
+    void onLine(ByteBuffer buffer, int start, int end);
+}
+
+/**
+ * Follows a growing file, in the manner of "tail -f".
+ *
+ * The follower keeps the byte offset just past the last complete line it delivered, so each
+ * poll reads only data appended since the previous one. A trailing line without a newline is
+ * left unread until it is completed. Two events reset the offset:
+ * - truncation: the file became shorter than the offset, so reading restarts at byte 0;
+ * - rotation: the path now refers to a different file (another file key), so the rest of the
+ *   old file is read first and the new file is then followed from its beginning.
+ */
+class FileFollower implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_WAIT_MILLIS = 10;
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    private final Path path;
+    private final LineHandler handler;
+    private final boolean startAtEnd;
+    private final WatchService watcher;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private FileChannel channel;
+    private Object fileKey;
+    private long offset;
+    private boolean opened;
+    private long waitMillis = MIN_WAIT_MILLIS;
+    private volatile boolean closed;
+
+    /**
+     * Creates a follower. Nothing is read until poll or follow is called.
+     *
+     * @param fileName the file to follow; it does not have to exist yet.
+     * @param startAtEnd whether to skip the complete lines present when the file is first opened.
+     *                   A line still being written at that moment is delivered whole once it is
+     *                   finished, never as a tail fragment.
+     * @param handler the callback receiving each complete line.
+     */
+    FileFollower(String fileName, boolean startAtEnd, LineHandler handler) {
+        this.path = Path.of(fileName).toAbsolutePath();
+        this.handler = handler;
+        this.startAtEnd = startAtEnd;
+        this.watcher = openWatcher(path.getParent());
+    }
+
+    /**
+     * Delivers every complete line appended since the previous call, without blocking.
+     *
+     * @return the number of lines delivered.
+     * @throws IOException if the file cannot be read.
+     */
+    synchronized long poll() throws IOException {
+        if (channel == null && !open()) {
+            return 0;
+        }
+        long delivered = 0;
+        Object currentKey = currentFileKey();
+        if (currentKey != null && fileKey != null && !currentKey.equals(fileKey)) {
+            // Rotated: drain what was appended to the old file, then switch to the new one.
+            delivered += readAppended();
+            channel.close();
+            channel = null;
+            if (!open()) {
+                return delivered;
+            }
+        } else if (channel.size() < offset) {
+            offset = 0;
+        }
+        return delivered + readAppended();
+    }
+
+    /**
+     * Polls until close is called or the thread is interrupted. Between empty polls the thread
+     * waits for a change notification from the WatchService; without one, or when a notification
+     * does not arrive, it falls back to a poll interval that doubles from 10 ms up to 1 s while
+     * the file stays idle and drops back as soon as new data shows up.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    void follow() throws IOException {
+        try {
+            while (!closed) {
+                if (poll() > 0) {
+                    waitMillis = MIN_WAIT_MILLIS;
+                    continue;
+                }
+                awaitChange();
+                waitMillis = Math.min(waitMillis * 2, MAX_WAIT_MILLIS);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            if (!closed) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops follow and releases the file and the WatchService.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (watcher != null) {
+            watcher.close();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private boolean open() throws IOException {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        fileKey = currentFileKey();
+        offset = (!opened && startAtEnd) ? startOfUnfinishedLine() : 0;
+        opened = true;
+        return true;
+    }
+
+    /**
+     * Returns the position just after the last newline in the file, scanning backwards one
+     * buffer at a time, or 0 if there is none.
+     */
+    private long startOfUnfinishedLine() throws IOException {
+        long position = channel.size();
+        while (position > 0) {
+            int length = (int) Math.min(buffer.capacity(), position);
+            long from = position - length;
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) < 0) {
+                    // Truncated while scanning; the next poll starts over from the beginning.
+                    return 0;
+                }
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+            position = from;
+        }
+        return 0;
+    }
+
+    private Object currentFileKey() throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads from the offset to the current end of the file and delivers the complete lines.
+     */
+    private long readAppended() throws IOException {
+        long delivered = 0;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                return delivered;
+            }
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = (i > lineStart && buffer.get(i - 1) == '\r') ? i - 1 : i;
+                    handler.onLine(buffer, lineStart, end);
+                    delivered++;
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0) {
+                if (read < buffer.capacity()) {
+                    // Only an unfinished line is left; wait for the rest of it.
+                    return delivered;
+                }
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+            offset += lineStart;
+        }
+    }
+
+    private void awaitChange() throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(waitMillis);
+            return;
+        }
+        WatchKey key = watcher.poll(waitMillis, TimeUnit.MILLISECONDS);
+        if (key != null) {
+            // Any event in the directory triggers a poll; drain the rest so they do not pile up.
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    private static WatchService openWatcher(Path directory) {
+        try {
+            WatchService service = directory.getFileSystem().newWatchService();
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            return service;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
+
+/**
+ * Writes lines to a FileChannel through one reusable direct buffer.
+ * Characters are encoded straight from the CharSequence into the buffer; the buffer is written
+ * out whenever it fills up, so no intermediate String or byte[] is created per line.
+ */
+class ChannelLineWriter implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long bytesWritten;
+
+    /**
+     * Creates (or truncates) the file.
+     *
+     * @param fileName the name of the file to write to.
+     * @throws IOException if the file cannot be opened.
+     */
+    ChannelLineWriter(String fileName) throws IOException {
+        channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Encodes one line followed by a newline.
+     *
+     * @param line the line to write.
+     * @throws IOException if the buffer could not be written out.
+     */
+    void writeLine(CharSequence line) throws IOException {
+        CharBuffer chars = line instanceof CharBuffer ? ((CharBuffer) line).duplicate() : CharBuffer.wrap(line);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Writes out any buffered bytes and, if requested, closes the file.
+     *
+     * @param closeChannel whether to close the file afterwards.
+     * @return the total number of bytes written.
+     * @throws IOException if the buffered bytes could not be written.
+     */
+    long close(boolean closeChannel) throws IOException {
+        if (channel.isOpen()) {
+            drain();
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            // Reached only when writing failed part-way; do not mask the original error.
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+/**
+ * A long-lived writer that batches records from many threads into large writes.
+ *
+ * Producers encode their record and place it on a bounded queue; when the queue is full they
+ * block, which throttles them to the speed of the disk. A single background thread drains the
+ * queue, copies as many records as fit into one direct ByteBuffer and writes it with one
+ * FileChannel call. How often the data is forced to the device is controlled by Durability.
+ *
+ * If a write fails, the background thread stops and every blocked or later write, flush and
+ * close reports the failure instead of waiting for a queue that nobody drains. Producers
+ * queue under a read lock and close() takes the write lock, so a record is either queued
+ * before the close marker, and written, or rejected.
+ */
+class GroupCommitWriter implements AutoCloseable {
+
+    /**
+     * When written data is forced to the storage device.
+     */
+    enum Durability {
+        /** Never call force; the operating system decides when data reaches the disk. */
+        NONE,
+        /** Call force at most once per configured interval. */
+        INTERVAL,
+        /** Call force after every batch, before its records count as written. */
+        PER_BATCH
+    }
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final long OFFER_TIMEOUT_MILLIS = 10;
+    private static final Record FLUSH = new Record(new byte[0]);
+    private static final Record CLOSE = new Record(new byte[0]);
+
+    private final FileChannel channel;
+    private final BlockingQueue<Record> queue;
+    private final ByteBuffer buffer;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private final Thread flusher;
+    private final Object flushLock = new Object();
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    // Statistics, written only by the flusher thread.
+    private final long startNanos = System.nanoTime();
+    private long lastSyncNanos = startNanos;
+    private long bytesAtLastSync;
+    private volatile long recordsWritten;
+    private volatile long bytesWritten;
+    private volatile long batches;
+    private volatile long syncs;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private long flushesRequested;
+    private long flushesCompleted;
+
+    /**
+     * Opens (or creates) the file for appending with default queue and buffer sizes.
+     *
+     * @param fileName the name of the file to append to.
+     * @param durability when to force data to the device.
+     * @param syncIntervalMillis the interval used by Durability.INTERVAL; ignored otherwise.
+     * @throws IOException if the file cannot be opened.
+     */
+    public GroupCommitWriter(String fileName, Durability durability, long syncIntervalMillis) throws IOException {
+        this(fileName, durability, syncIntervalMillis, DEFAULT_QUEUE_CAPACITY, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens (or creates) the file for appending.
+     *
+     * @param fileName the name of the file to append to.
+     * @param durability when to force data to the device.
+     * @param syncIntervalMillis the interval used by Durability.INTERVAL; ignored otherwise.
+     * @param queueCapacity the maximum number of records waiting to be written.
+     * @param bufferSize the size of the direct buffer used for each write.
+     * @throws IOException if the file cannot be opened.
+     */
+    public GroupCommitWriter(String fileName, Durability durability, long syncIntervalMillis,
+                             int queueCapacity, int bufferSize) throws IOException {
+        if (durability == Durability.INTERVAL && syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive: " + syncIntervalMillis);
+        }
+        this.channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.durability = durability;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.flusher = new Thread(this::runFlusher, "group-commit-" + fileName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a line (UTF-8, followed by a newline), blocking while the queue is full. The
+     * characters are encoded straight into the record's array, without an intermediate String
+     * or byte[]. An unpaired surrogate is written as '?', as String.getBytes does.
+     *
+     * @param line the line to append.
+     * @throws UncheckedIOException if the background thread failed to write earlier records.
+     * @throws IllegalStateException if the writer is closed.
+     */
+    public void writeLine(CharSequence line) {
+        byte[] bytes = new byte[utf8Length(line) + 1];
+        int end = encodeUtf8(line, bytes);
+        bytes[end] = '\n';
+        write(bytes);
+    }
+
+    /**
+     * Queues a raw record, blocking while the queue is full.
+     *
+     * @param bytes the bytes to append; the array must not be modified afterwards.
+     * @throws UncheckedIOException if the background thread failed to write earlier records.
+     * @throws IllegalStateException if the writer is closed.
+     */
+    public void write(byte[] bytes) {
+        Record record = new Record(bytes);
+        stateLock.readLock().lock();
+        try {
+            checkOpen();
+            if (!enqueue(record)) {
+                throw new UncheckedIOException(failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a record", e);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until every record queued before this call has been written (and forced, unless the
+     * durability mode is NONE).
+     *
+     * @throws IOException if a write failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flush() throws IOException, InterruptedException {
+        long ticket;
+        stateLock.readLock().lock();
+        try {
+            checkOpen();
+            synchronized (flushLock) {
+                ticket = ++flushesRequested;
+            }
+            if (!enqueue(FLUSH)) {
+                throw failure;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        synchronized (flushLock) {
+            while (flushesCompleted < ticket && failure == null) {
+                flushLock.wait();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes all queued records, forces them to disk (unless the durability mode is NONE),
+     * stops the background thread and closes the file.
+     *
+     * @throws IOException if a write failed.
+     */
+    @Override
+    public void close() throws IOException {
+        // Waits for producers that are still queueing; later ones see closed and are rejected.
+        stateLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        try {
+            // If the background thread has failed it is no longer reading the queue.
+            if (enqueue(CLOSE)) {
+                flusher.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the writer's throughput and latency figures.
+     *
+     * @return the current statistics.
+     */
+    public Stats stats() {
+        long records = recordsWritten;
+        return new Stats(records, bytesWritten, batches, syncs, System.nanoTime() - startNanos,
+                records == 0 ? 0 : totalLatencyNanos / records, maxLatencyNanos);
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+    }
+
+    /**
+     * Offers a record, giving up once the background thread has failed.
+     *
+     * @return false if the writer failed before the record could be queued.
+     */
+    private boolean enqueue(Record record) throws InterruptedException {
+        while (failure == null) {
+            if (queue.offer(record, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Background loop: take one record (waiting up to the sync interval), drain whatever else is
+     * queued, write it as one batch, then apply the durability policy.
+     */
+    private void runFlusher() {
+        List<Record> batch = new ArrayList<>();
+        try {
+            boolean running = true;
+            while (running) {
+                Record first = durability == Durability.INTERVAL
+                        ? queue.poll(syncIntervalNanos, TimeUnit.NANOSECONDS)
+                        : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                int flushes = 0;
+                for (Record record : batch) {
+                    if (record == FLUSH) {
+                        flushes++;
+                    } else if (record == CLOSE) {
+                        running = false;
+                    } else {
+                        append(record.bytes);
+                    }
+                }
+                drainBuffer();
+                // An idle poll timeout or a flush with nothing new written has nothing to force.
+                boolean unsynced = bytesWritten != bytesAtLastSync;
+                boolean mustSync = unsynced && (durability == Durability.PER_BATCH
+                        || (durability == Durability.INTERVAL
+                            && (flushes > 0 || !running || System.nanoTime() - lastSyncNanos >= syncIntervalNanos)));
+                if (mustSync && channel.isOpen()) {
+                    channel.force(false);
+                    syncs++;
+                    lastSyncNanos = System.nanoTime();
+                    bytesAtLastSync = bytesWritten;
+                }
+                recordBatch(batch);
+                if (flushes > 0) {
+                    synchronized (flushLock) {
+                        flushesCompleted += flushes;
+                        flushLock.notifyAll();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Writer thread interrupted");
+        } catch (RuntimeException e) {
+            failure = new IOException("Writer thread failed", e);
+        } finally {
+            if (failure != null) {
+                // Nothing will write the queued records; free the space so blocked producers
+                // wake up and see the failure.
+                queue.clear();
+            }
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // Two chars become four bytes.
+                bytes += 2;
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the text as UTF-8 at the start of the target.
+     *
+     * @return the number of bytes written.
+     */
+    private static int encodeUtf8(CharSequence text, byte[] target) {
+        int length = text.length();
+        int out = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                target[out++] = (byte) c;
+            } else if (c < 0x800) {
+                target[out++] = (byte) (0xC0 | c >> 6);
+                target[out++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                target[out++] = (byte) (0xE0 | c >> 12);
+                target[out++] = (byte) (0x80 | c >> 6 & 0x3F);
+                target[out++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                target[out++] = (byte) (0xF0 | codePoint >> 18);
+                target[out++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                target[out++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                target[out++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                target[out++] = '?';
+            }
+        }
+        return out;
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            drainBuffer();
+            if (bytes.length > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void drainBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            bytesWritten += channel.write(source);
+        }
+    }
+
+    private void recordBatch(List<Record> batch) {
+        long now = System.nanoTime();
+        long records = 0;
+        long latency = 0;
+        long max = maxLatencyNanos;
+        for (Record record : batch) {
+            if (record == FLUSH || record == CLOSE) {
+                continue;
+            }
+            long elapsed = now - record.enqueuedNanos;
+            latency += elapsed;
+            max = Math.max(max, elapsed);
+            records++;
+        }
+        if (records > 0) {
+            totalLatencyNanos += latency;
+            maxLatencyNanos = max;
+            recordsWritten += records;
+            batches++;
+        }
+    }
+
+    /**
+     * A queued record together with the time it was queued, used for latency figures.
+     */
+    private static final class Record {
+        final byte[] bytes;
+        final long enqueuedNanos;
+
+        Record(byte[] bytes) {
+            this.bytes = bytes;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Throughput and latency figures of a GroupCommitWriter. Latency is measured from the moment a
+     * record is queued until its batch has been written (and forced, when the mode requires it).
+     */
+    static final class Stats {
+        final long records;
+        final long bytes;
+        final long batches;
+        final long syncs;
+        final long elapsedNanos;
+        final long averageLatencyNanos;
+        final long maxLatencyNanos;
+
+        Stats(long records, long bytes, long batches, long syncs, long elapsedNanos,
+              long averageLatencyNanos, long maxLatencyNanos) {
+            this.records = records;
+            this.bytes = bytes;
+            this.batches = batches;
+            this.syncs = syncs;
+            this.elapsedNanos = elapsedNanos;
+            this.averageLatencyNanos = averageLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        double recordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("records=%d bytes=%d batches=%d syncs=%d throughput=%.0f rec/s (%.2f MB/s)"
+                            + " latency avg=%.3f ms max=%.3f ms",
+                    records, bytes, batches, syncs, recordsPerSecond(), megabytesPerSecond(),
+                    averageLatencyNanos / 1e6, maxLatencyNanos / 1e6);
+        }
+    }
+}
+
+/**
+ * A small LZ77 codec in the style of LZ4, used for the blocks of BlockCompressedWriter.
+ *
+ * The output is a series of sequences. Each sequence starts with a token byte whose high nibble
+ * is the number of literal bytes and whose low nibble is the match length minus 4; a nibble of
+ * 15 means more length bytes follow (each adding up to 255). The literals come next, then a
+ * 2-byte little-endian offset back into the already decoded output. The last sequence holds
+ * only literals. Matches are found through a hash table of 4-byte prefixes, which trades some
+ * ratio for speed.
+ */
+final class LzCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+    /** The last bytes are always emitted as literals so the match search never reads past the end. */
+    private static final int LAST_LITERALS = 5;
+
+    private LzCodec() {
+    }
+
+    /**
+     * Returns the largest possible compressed size for an input of the given length.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses src[0, length) into dst starting at dstOffset.
+     *
+     * @param src the input bytes.
+     * @param length the number of input bytes.
+     * @param dst the output array, with at least maxCompressedLength(length) bytes after dstOffset.
+     * @param dstOffset the position in dst of the first compressed byte.
+     * @return the number of bytes written to dst.
+     */
+    static int compress(byte[] src, int length, byte[] dst, int dstOffset) {
+        int[] table = new int[1 << HASH_BITS];
+        int out = dstOffset;
+        int anchor = 0;
+        int i = 0;
+        int limit = length - LAST_LITERALS - MIN_MATCH;
+        int misses = 0;
+        while (i < limit) {
+            int value = readInt(src, i);
+            int hash = (value * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = i + 1;
+            if (candidate < 0 || i - candidate > MAX_OFFSET || readInt(src, candidate) != value) {
+                // Skip ahead faster through data that does not compress.
+                i += 1 + (misses++ >> 6);
+                continue;
+            }
+            misses = 0;
+            int matchEnd = i + MIN_MATCH;
+            int maxEnd = length - LAST_LITERALS;
+            while (matchEnd < maxEnd && src[matchEnd] == src[candidate + matchEnd - i]) {
+                matchEnd++;
+            }
+            out = writeSequence(src, anchor, i - anchor, dst, out, i - candidate, matchEnd - i);
+            i = matchEnd;
+            anchor = i;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, out, 0, 0) - dstOffset;
+    }
+
+    /**
+     * Decompresses src[0, length) into dst.
+     *
+     * @param src the compressed bytes.
+     * @param length the number of compressed bytes.
+     * @param dst the output array, exactly as long as the original input.
+     * @return the number of bytes written to dst.
+     * @throws IllegalArgumentException if the input is corrupt.
+     */
+    static int decompress(byte[] src, int length, byte[] dst) {
+        int in = 0;
+        int out = 0;
+        try {
+            while (in < length) {
+                int token = src[in++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, in, dst, out, literals);
+                in += literals;
+                out += literals;
+                if (in == length) {
+                    break;
+                }
+                int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+                in += 2;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                int from = out - offset;
+                if (offset == 0 || from < 0) {
+                    throw new IllegalArgumentException("Corrupt block: bad match offset " + offset);
+                }
+                // Byte by byte on purpose: a match may overlap the bytes it is producing.
+                for (int k = 0; k < match; k++) {
+                    dst[out++] = dst[from + k];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt block", e);
+        }
+        return out;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, byte[] dst, int out,
+                                     int offset, int match) {
+        int matchCode = match == 0 ? 0 : match - MIN_MATCH;
+        int tokenPosition = out++;
+        int token = Math.min(literals, 15) << 4 | Math.min(matchCode, 15);
+        dst[tokenPosition] = (byte) token;
+        out = writeLength(dst, out, literals);
+        System.arraycopy(src, literalStart, dst, out, literals);
+        out += literals;
+        if (match > 0) {
+            dst[out++] = (byte) offset;
+            dst[out++] = (byte) (offset >>> 8);
+            out = writeLength(dst, out, matchCode);
+        }
+        return out;
+    }
+
+    private static int writeLength(byte[] dst, int out, int length) {
+        if (length >= 15) {
+            int rest = length - 15;
+            while (rest >= 255) {
+                dst[out++] = (byte) 255;
+                rest -= 255;
+            }
+            dst[out++] = (byte) rest;
+        }
+        return out;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+}
+
+/**
+ * Writes lines into a seekable block-compressed file.
+ *
+ * Layout (all numbers big-endian):
+ * <pre>
+ *   header: magic "LZB1"
+ *   block*: rawLength:int compressedLength:int lineCount:int data[compressedLength]
+ *   index:  (blockOffset:long firstLine:long) per block
+ *   footer: lineCount:long blockCount:int indexOffset:long magic "LZB1"
+ * </pre>
+ * A block whose compressedLength equals its rawLength is stored uncompressed. Lines never span
+ * blocks. Full blocks are compressed on a thread pool while the caller keeps adding lines, and
+ * are written in order as they finish.
+ */
+class BlockCompressedWriter implements Closeable {
+    static final int MAGIC = 0x4C5A4231;
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final ExecutorService compressors;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final List<long[]> index = new ArrayList<>();
+    private byte[] block;
+    private int blockLength;
+    private int blockLines;
+    private long lines;
+    private long position;
+    private boolean closed;
+
+    /**
+     * Creates (or truncates) the file.
+     *
+     * @param fileName the name of the file to write to.
+     * @param blockSize the target number of uncompressed bytes per block.
+     * @param threads the number of threads compressing blocks.
+     * @throws IOException if the file cannot be opened.
+     */
+    BlockCompressedWriter(String fileName, int blockSize, int threads) throws IOException {
+        if (blockSize <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Block size and thread count must be positive");
+        }
+        this.channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.blockSize = blockSize;
+        this.compressors = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "block-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC).flip();
+        writeFully(header);
+    }
+
+    /**
+     * Appends one line (UTF-8). A line longer than the block size gets a block of its own.
+     *
+     * @param line the line to append.
+     * @throws IOException if a finished block could not be written.
+     */
+    void writeLine(CharSequence line) throws IOException {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        int needed = bytes.length + 1;
+        if (blockLength > 0 && blockLength + needed > blockSize) {
+            submitBlock();
+        }
+        if (needed > block.length) {
+            block = Arrays.copyOf(block, needed);
+        }
+        System.arraycopy(bytes, 0, block, blockLength, bytes.length);
+        block[blockLength + bytes.length] = '\n';
+        blockLength += needed;
+        blockLines++;
+    }
+
+    /**
+     * Compresses and writes the last block, then writes the index and footer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (blockLength > 0) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeOldestBlock();
+            }
+            long indexOffset = position;
+            ByteBuffer footer = ByteBuffer.allocate(index.size() * 16 + 24);
+            for (long[] entry : index) {
+                footer.putLong(entry[0]).putLong(entry[1]);
+            }
+            footer.putLong(lines).putInt(index.size()).putLong(indexOffset).putInt(MAGIC).flip();
+            writeFully(footer);
+        } finally {
+            compressors.shutdownNow();
+            channel.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] raw = block;
+        int rawLength = blockLength;
+        int lineCount = blockLines;
+        pending.add(compressors.submit(() -> encodeBlock(raw, rawLength, lineCount)));
+        block = new byte[blockSize];
+        blockLength = 0;
+        blockLines = 0;
+        if (pending.size() >= maxPending) {
+            writeOldestBlock();
+        }
+    }
+
+    /**
+     * Builds the on-disk form of one block: its 12-byte header followed by the compressed bytes,
+     * or by the raw bytes when compression does not make the block smaller.
+     */
+    private static byte[] encodeBlock(byte[] raw, int rawLength, int lineCount) {
+        byte[] encoded = new byte[12 + LzCodec.maxCompressedLength(rawLength)];
+        int compressedLength = LzCodec.compress(raw, rawLength, encoded, 12);
+        if (compressedLength < rawLength) {
+            encoded = Arrays.copyOf(encoded, 12 + compressedLength);
+        } else {
+            encoded = new byte[12 + rawLength];
+            System.arraycopy(raw, 0, encoded, 12, rawLength);
+            compressedLength = rawLength;
+        }
+        ByteBuffer.wrap(encoded).putInt(rawLength).putInt(compressedLength).putInt(lineCount);
+        return encoded;
+    }
+
+    private void writeOldestBlock() throws IOException {
+        byte[] encoded;
+        try {
+            encoded = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        }
+        int lineCount = ByteBuffer.wrap(encoded).getInt(8);
+        index.add(new long[] {position, lines});
+        lines += lineCount;
+        writeFully(ByteBuffer.wrap(encoded));
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source);
+        }
+    }
+}
+
+/**
+ * Random access to a file written by BlockCompressedWriter.
+ * The footer index is loaded once; reading a line then costs one binary search over the index,
+ * one positional read and the decompression of a single block. The most recently used block is
+ * kept decompressed, so reading nearby lines is cheap.
+ */
+class BlockCompressedReader implements Closeable {
+    private final FileChannel channel;
+    private final long[] blockOffsets;
+    private final long[] firstLines;
+    private final long lineCount;
+    private int cachedBlock = -1;
+    private byte[] cachedData;
+    private int[] cachedLineStarts;
+
+    /**
+     * Opens the file and loads its index.
+     *
+     * @param fileName the name of the file to read.
+     * @throws IOException if the file cannot be read or is not a block-compressed file.
+     */
+    BlockCompressedReader(String fileName) throws IOException {
+        channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 28) {
+                throw new IOException("Not a block-compressed file: " + fileName);
+            }
+            ByteBuffer footer = readAt(size - 24, 24);
+            lineCount = footer.getLong();
+            int blocks = footer.getInt();
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != BlockCompressedWriter.MAGIC || indexOffset + blocks * 16L != size - 24) {
+                throw new IOException("Not a block-compressed file: " + fileName);
+            }
+            ByteBuffer index = readAt(indexOffset, blocks * 16);
+            blockOffsets = new long[blocks];
+            firstLines = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockOffsets[i] = index.getLong();
+                firstLines[i] = index.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long lineCount() {
+        return lineCount;
+    }
+
+    int blockCount() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Returns the line with the given number.
+     *
+     * @param lineNumber the zero-based line number.
+     * @return the line, without its newline.
+     * @throws IOException if the block cannot be read or is corrupt.
+     */
+    String readLine(long lineNumber) throws IOException {
+        if (lineNumber < 0 || lineNumber >= lineCount) {
+            throw new IndexOutOfBoundsException("Line " + lineNumber + " of " + lineCount);
+        }
+        int block = Arrays.binarySearch(firstLines, lineNumber);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        loadBlock(block);
+        int line = (int) (lineNumber - firstLines[block]);
+        int start = cachedLineStarts[line];
+        int end = cachedLineStarts[line + 1] - 1;
+        return new String(cachedData, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void loadBlock(int block) throws IOException {
+        if (block == cachedBlock) {
+            return;
+        }
+        ByteBuffer header = readAt(blockOffsets[block], 12);
+        int rawLength = header.getInt();
+        int compressedLength = header.getInt();
+        int lines = header.getInt();
+        byte[] stored = readAt(blockOffsets[block] + 12, compressedLength).array();
+        byte[] data;
+        if (compressedLength == rawLength) {
+            data = stored;
+        } else {
+            data = new byte[rawLength];
+            try {
+                if (LzCodec.decompress(stored, compressedLength, data) != rawLength) {
+                    throw new IOException("Corrupt block " + block);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt block " + block, e);
+            }
+        }
+        int[] starts = new int[lines + 1];
+        int line = 1;
+        for (int i = 0; i < rawLength && line <= lines; i++) {
+            if (data[i] == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        cachedBlock = block;
+        cachedData = data;
+        cachedLineStarts = starts;
+    }
+
+    private ByteBuffer readAt(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at offset " + (offset + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+}
+
+/**
+ * An append-only log of byte records stored in rolling segment files.
+ *
+ * Every record gets a logical offset: the first record ever appended is 0, the next 1, and so
+ * on. Records are framed as length:int crc:int payload and appended sequentially to the active
+ * segment; once that segment reaches the configured size a new one is started. The CRC32C
+ * covers the length as well as the payload, so a zero-filled tail does not pass as a run of
+ * empty records. Each segment
+ * is named after the offset of its first record and has a companion index file holding
+ * (relative offset, file position) pairs for one record every indexIntervalBytes. The index is
+ * memory-mapped, so read(offset) is a binary search in memory, then one read of at most
+ * indexIntervalBytes whose record headers are walked in memory to find the record. Retention
+ * removes whole segments from the oldest end.
+ */
+class SegmentedLog implements Closeable {
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int RECORD_HEADER = 8;
+    private static final int INDEX_ENTRY = 8;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int indexIntervalBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    // Holds one index interval of a segment while positionOf walks its headers.
+    private ByteBuffer intervalBuffer;
+
+    /**
+     * Opens the log in the directory, creating the directory if needed. Existing segments are
+     * reopened; the newest one becomes the active segment and is recovered by scanning it, which
+     * drops a partly written last record.
+     *
+     * @param directoryName the directory holding the segment files.
+     * @param segmentBytes the size after which a new segment is started.
+     * @param indexIntervalBytes the number of log bytes between two index entries.
+     * @throws IOException if the directory or a segment cannot be opened.
+     */
+    SegmentedLog(String directoryName, long segmentBytes, int indexIntervalBytes) throws IOException {
+        if (segmentBytes <= RECORD_HEADER || segmentBytes > Integer.MAX_VALUE || indexIntervalBytes <= 0) {
+            throw new IllegalArgumentException("Invalid segment size or index interval");
+        }
+        this.directory = Path.of(directoryName);
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                segments.put(baseOffset, null);
+            }
+        }
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            boolean last = entry.getKey().equals(segments.lastKey());
+            entry.setValue(new Segment(entry.getKey(), last));
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * Appends a record to the end of the log.
+     *
+     * @param record the record bytes.
+     * @return the offset assigned to the record.
+     * @throws IOException if the record cannot be written.
+     */
+    synchronized long append(byte[] record) throws IOException {
+        int size = RECORD_HEADER + record.length;
+        if (active.size > 0 && active.size + size > segmentBytes) {
+            active.seal();
+            roll(active.nextOffset);
+        }
+        return active.append(record);
+    }
+
+    /**
+     * Reads the record stored at an offset.
+     *
+     * @param offset the offset returned by append.
+     * @return the record bytes.
+     * @throws IOException if the record cannot be read or is corrupt.
+     * @throws IndexOutOfBoundsException if no record with this offset is retained.
+     */
+    synchronized byte[] read(long offset) throws IOException {
+        Segment segment = segmentFor(offset);
+        long position = segment.positionOf(offset);
+        ByteBuffer header = segment.readAt(position, RECORD_HEADER);
+        int length = header.getInt(0);
+        ByteBuffer payload = segment.readAt(position + RECORD_HEADER, length);
+        segment.verify(length, header.getInt(4), payload, position);
+        return payload.array();
+    }
+
+    /**
+     * Calls the consumer for every record in [fromOffset, toOffset), in offset order. Reads are
+     * sequential within each segment. The buffer handed to the consumer is reused afterwards.
+     *
+     * @param fromOffset the first offset to deliver.
+     * @param toOffset the offset after the last one to deliver.
+     * @param consumer receives each offset and record.
+     * @throws IOException if a record cannot be read or is corrupt.
+     */
+    synchronized void scan(long fromOffset, long toOffset, RecordConsumer consumer) throws IOException {
+        toOffset = Math.min(toOffset, endOffset());
+        long offset = fromOffset;
+        RecordReader reader = new RecordReader();
+        while (offset < toOffset) {
+            Segment segment = segmentFor(offset);
+            long position = segment.positionOf(offset);
+            long stop = Math.min(toOffset, segment.nextOffset);
+            while (offset < stop) {
+                int at = reader.load(segment, position, RECORD_HEADER, segment.size);
+                int length = reader.buffer.getInt(at);
+                int crc = reader.buffer.getInt(at + 4);
+                at = reader.load(segment, position, RECORD_HEADER + length, segment.size);
+                ByteBuffer payload = reader.buffer.slice(at + RECORD_HEADER, length);
+                segment.verify(length, crc, payload, position);
+                consumer.accept(offset, payload);
+                position += RECORD_HEADER + length;
+                offset++;
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segments until the log takes no more than maxBytes on disk.
+     * The active segment is never deleted.
+     *
+     * @param maxBytes the size limit for all segments together.
+     * @return the number of segments deleted.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    synchronized int retainBytes(long maxBytes) throws IOException {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        int deleted = 0;
+        while (segments.size() > 1 && total > maxBytes) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            total -= oldest.size;
+            oldest.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes sealed segments whose last write is older than maxAgeMillis.
+     *
+     * @param maxAgeMillis the maximum age of a segment in milliseconds.
+     * @return the number of segments deleted.
+     * @throws IOException if a segment cannot be deleted.
+     */
+    synchronized int retainAge(long maxAgeMillis) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        while (segments.size() > 1
+                && Files.getLastModifiedTime(segments.firstEntry().getValue().logFile).toMillis() < cutoff) {
+            segments.pollFirstEntry().getValue().delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Forces the active segment and its index to disk.
+     *
+     * @throws IOException if the data cannot be forced.
+     */
+    synchronized void flush() throws IOException {
+        active.channel.force(false);
+        active.index.force();
+    }
+
+    /**
+     * Returns the offset of the oldest retained record.
+     */
+    synchronized long startOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Returns the offset the next appended record will get.
+     */
+    synchronized long endOffset() {
+        return active.nextOffset;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments.values()) {
+            try {
+                if (segment == active) {
+                    segment.seal();
+                }
+                segment.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        active = new Segment(baseOffset, true);
+        segments.put(baseOffset, active);
+    }
+
+    private Segment segmentFor(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null || offset >= active.nextOffset || offset < 0) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is not in the log ["
+                    + startOffset() + ", " + endOffset() + ")");
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Returns the CRC32C of a record's length, as four big-endian bytes, followed by its payload.
+     */
+    private static int checksum(int length, ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads a segment sequentially through one reused buffer. Each read fills as much of the
+     * buffer as the segment allows, so consecutive records are usually already loaded.
+     */
+    private static final class RecordReader {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).limit(0);
+        private Segment segment;
+        private long start;
+
+        /**
+         * Makes the buffer hold [position, position + length) of the segment and returns the
+         * index of position in it.
+         *
+         * @param end the segment position after the last byte that may be read ahead.
+         */
+        int load(Segment segment, long position, int length, long end) throws IOException {
+            if (segment != this.segment || position < start || position + length > start + buffer.limit()) {
+                if (buffer.capacity() < length) {
+                    buffer = ByteBuffer.allocate(length);
+                }
+                buffer.clear().limit((int) Math.min(buffer.capacity(), Math.max(length, end - position)));
+                segment.readFully(buffer, position);
+                buffer.flip();
+                this.segment = segment;
+                this.start = position;
+            }
+            return (int) (position - start);
+        }
+    }
+
+    /**
+     * Receives records from scan.
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(long offset, ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * One log file and its sparse index. The active segment maps its index file at the maximum
+     * size it can need; sealing trims the file to the entries actually written.
+     */
+    private final class Segment {
+        final long baseOffset;
+        final Path logFile;
+        final Path indexFile;
+        final FileChannel channel;
+        MappedByteBuffer index;
+        int indexEntries;
+        long size;
+        long nextOffset;
+        long bytesSinceIndexEntry;
+
+        Segment(long baseOffset, boolean writable) throws IOException {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logFile = directory.resolve(name + LOG_SUFFIX);
+            this.indexFile = directory.resolve(name + INDEX_SUFFIX);
+            this.channel = writable
+                    ? FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(logFile, StandardOpenOption.READ);
+            if (writable) {
+                recover();
+            } else {
+                try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+                    index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+                }
+                indexEntries = index.capacity() / INDEX_ENTRY;
+                size = channel.size();
+                nextOffset = baseOffset + countRecordsFromLastIndexEntry();
+            }
+        }
+
+        long append(byte[] record) throws IOException {
+            if (indexEntries == 0 || bytesSinceIndexEntry >= indexIntervalBytes) {
+                index.putInt(indexEntries * INDEX_ENTRY, (int) (nextOffset - baseOffset));
+                index.putInt(indexEntries * INDEX_ENTRY + 4, (int) size);
+                indexEntries++;
+                bytesSinceIndexEntry = 0;
+            }
+            ByteBuffer framed = ByteBuffer.allocate(RECORD_HEADER + record.length);
+            framed.putInt(record.length).putInt(checksum(record.length, ByteBuffer.wrap(record))).put(record).flip();
+            while (framed.hasRemaining()) {
+                channel.write(framed, size + framed.position());
+            }
+            size += framed.limit();
+            bytesSinceIndexEntry += framed.limit();
+            return nextOffset++;
+        }
+
+        /**
+         * Returns the file position of a record: the position of the nearest indexed record at
+         * or before it, advanced over the record headers in between. Every record after an index
+         * entry and before the next one starts within indexIntervalBytes of it, so one read
+         * brings in all the headers to walk. Another read is needed only when the segment was
+         * indexed with a larger interval.
+         */
+        long positionOf(long offset) throws IOException {
+            int relative = (int) (offset - baseOffset);
+            int low = 0;
+            int high = indexEntries - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (index.getInt(mid * INDEX_ENTRY) <= relative) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            long current = baseOffset + index.getInt(low * INDEX_ENTRY);
+            long position = index.getInt(low * INDEX_ENTRY + 4);
+            if (current == offset) {
+                return position;
+            }
+            if (intervalBuffer == null) {
+                intervalBuffer = ByteBuffer.allocate((int) Math.min((long) indexIntervalBytes + RECORD_HEADER, segmentBytes));
+            }
+            long bufferStart = position;
+            fillIntervalBuffer(position);
+            while (current < offset) {
+                int at = (int) (position - bufferStart);
+                if (at + RECORD_HEADER > intervalBuffer.limit()) {
+                    bufferStart = position;
+                    fillIntervalBuffer(position);
+                    at = 0;
+                }
+                position += RECORD_HEADER + intervalBuffer.getInt(at);
+                current++;
+            }
+            return position;
+        }
+
+        private void fillIntervalBuffer(long position) throws IOException {
+            intervalBuffer.clear().limit((int) Math.min(intervalBuffer.capacity(), size - position));
+            readFully(intervalBuffer, position);
+            intervalBuffer.flip();
+        }
+
+        ByteBuffer readAt(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(buffer, position);
+            return buffer.flip();
+        }
+
+        void readFully(ByteBuffer buffer, long position) throws IOException {
+            long start = position - buffer.position();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of segment " + logFile);
+                }
+            }
+        }
+
+        void verify(int length, int expectedCrc, ByteBuffer payload, long position) throws IOException {
+            if (checksum(length, payload) != expectedCrc) {
+                throw new IOException("Corrupt record at position " + position + " of " + logFile);
+            }
+        }
+
+        void seal() throws IOException {
+            if (index.isReadOnly()) {
+                return;
+            }
+            index.force();
+            try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                indexChannel.truncate((long) indexEntries * INDEX_ENTRY);
+                index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            }
+            channel.force(false);
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            index = null;
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(indexFile);
+        }
+
+        /**
+         * Rebuilds the index of the active segment from its log file. Scanning stops at the first
+         * record that is cut short or fails its checksum, and the file is truncated there.
+         */
+        private void recover() throws IOException {
+            long fileSize = channel.size();
+            // The segment may have been written with a larger segmentBytes than this log uses.
+            long bytes = Math.max(segmentBytes, fileSize);
+            long maxEntries = bytes / RECORD_HEADER + 1;
+            try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long maxIndexBytes = Math.min(maxEntries, bytes / indexIntervalBytes + 2) * INDEX_ENTRY;
+                index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, maxIndexBytes);
+            }
+            nextOffset = baseOffset;
+            RecordReader reader = new RecordReader();
+            while (size + RECORD_HEADER <= fileSize) {
+                int at = reader.load(this, size, RECORD_HEADER, fileSize);
+                int length = reader.buffer.getInt(at);
+                if (length < 0 || size + RECORD_HEADER + length > fileSize) {
+                    break;
+                }
+                int crc = reader.buffer.getInt(at + 4);
+                at = reader.load(this, size, RECORD_HEADER + length, fileSize);
+                if (checksum(length, reader.buffer.slice(at + RECORD_HEADER, length)) != crc) {
+                    break;
+                }
+                if (indexEntries == 0 || bytesSinceIndexEntry >= indexIntervalBytes) {
+                    index.putInt(indexEntries * INDEX_ENTRY, (int) (nextOffset - baseOffset));
+                    index.putInt(indexEntries * INDEX_ENTRY + 4, (int) size);
+                    indexEntries++;
+                    bytesSinceIndexEntry = 0;
+                }
+                size += RECORD_HEADER + length;
+                bytesSinceIndexEntry += RECORD_HEADER + length;
+                nextOffset++;
+            }
+            if (size < fileSize) {
+                channel.truncate(size);
+            }
+        }
+
+        /**
+         * Counts the records of a sealed segment by scanning from its last index entry.
+         */
+        private long countRecordsFromLastIndexEntry() throws IOException {
+            if (indexEntries == 0) {
+                return 0;
+            }
+            long count = index.getInt((indexEntries - 1) * INDEX_ENTRY);
+            long position = index.getInt((indexEntries - 1) * INDEX_ENTRY + 4);
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (position < size) {
+                header.clear();
+                readFully(header, position);
+                position += RECORD_HEADER + header.getInt(0);
+                count++;
+            }
+            return count;
+        }
+    }
+}
+
+/**
+ * Reads or writes many files concurrently.
+ *
+ * Every file is handled with an AsynchronousFileChannel, so the calling thread only starts
+ * operations and never waits on a single file. A semaphore caps how many files are open and in
+ * flight at once: enough to keep the disk queue full, few enough to stay within file-handle
+ * limits. Each file is reported to the handler as soon as it is done, in completion order.
+ * The handler may be called from several I/O threads at the same time.
+ */
+class BatchFileIO implements Closeable {
+    private final Semaphore inFlight;
+    private final ExecutorService ioThreads;
+
+    /**
+     * Creates a batch runner.
+     *
+     * @param maxInFlight the maximum number of files being read or written at the same time.
+     */
+    BatchFileIO(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.ioThreads = Executors.newFixedThreadPool(Math.min(maxInFlight, 4 * Runtime.getRuntime().availableProcessors()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "batch-file-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Reads every file completely and blocks until all of them are done.
+     *
+     * @param files the files to read.
+     * @param handler receives one result per file, in completion order.
+     * @return the number of files that failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    int readAll(Collection<Path> files, Consumer<FileResult> handler) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(files.size());
+        AtomicLong failures = new AtomicLong();
+        for (Path file : files) {
+            inFlight.acquire();
+            long start = System.nanoTime();
+            AsynchronousFileChannel channel = null;
+            try {
+                channel = AsynchronousFileChannel.open(file, Set.of(StandardOpenOption.READ), ioThreads);
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File too large for a single buffer: " + file);
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                transfer(channel, buffer, false, new Transfer(file, start, buffer, handler, done, failures));
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                closeAfterFailure(channel, e);
+                complete(new FileResult(file, null, e, System.nanoTime() - start), handler, done, failures);
+            }
+        }
+        done.await();
+        return (int) failures.get();
+    }
+
+    /**
+     * Writes every file, replacing existing contents, and blocks until all of them are done.
+     *
+     * @param files the files to write and their contents.
+     * @param handler receives one result per file, in completion order; data is null.
+     * @return the number of files that failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    int writeAll(Map<Path, byte[]> files, Consumer<FileResult> handler) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(files.size());
+        AtomicLong failures = new AtomicLong();
+        for (Map.Entry<Path, byte[]> entry : files.entrySet()) {
+            Path file = entry.getKey();
+            inFlight.acquire();
+            long start = System.nanoTime();
+            AsynchronousFileChannel channel = null;
+            try {
+                channel = AsynchronousFileChannel.open(file,
+                        Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                        ioThreads);
+                ByteBuffer buffer = ByteBuffer.wrap(entry.getValue());
+                transfer(channel, buffer, true, new Transfer(file, start, null, handler, done, failures));
+            } catch (IOException | RuntimeException e) {
+                closeAfterFailure(channel, e);
+                complete(new FileResult(file, null, e, System.nanoTime() - start), handler, done, failures);
+            }
+        }
+        done.await();
+        return (int) failures.get();
+    }
+
+    @Override
+    public void close() {
+        ioThreads.shutdown();
+    }
+
+    /**
+     * Issues the next read or write; the completion handler re-issues it until the buffer is
+     * full (read), empty (write) or the file ends.
+     */
+    private void transfer(AsynchronousFileChannel channel, ByteBuffer buffer, boolean write, Transfer transfer) {
+        CompletionHandler<Integer, Void> next = new CompletionHandler<>() {
+            @Override
+            public void completed(Integer count, Void ignored) {
+                if (count >= 0 && buffer.hasRemaining()) {
+                    transfer(channel, buffer, write, transfer);
+                } else {
+                    finish(channel, transfer, null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable error, Void ignored) {
+                finish(channel, transfer, error);
+            }
+        };
+        if (write) {
+            channel.write(buffer, buffer.position(), null, next);
+        } else {
+            channel.read(buffer, buffer.position(), null, next);
+        }
+    }
+
+    /**
+     * Closes a channel whose transfer never started, so a failure before the first read or
+     * write does not leak it.
+     */
+    private static void closeAfterFailure(AsynchronousFileChannel channel, Throwable failure) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private void finish(AsynchronousFileChannel channel, Transfer transfer, Throwable error) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            error = error == null ? e : error;
+        }
+        byte[] data = null;
+        if (error == null && transfer.buffer != null) {
+            ByteBuffer buffer = transfer.buffer;
+            data = buffer.position() == buffer.capacity() ? buffer.array()
+                    : Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        complete(new FileResult(transfer.file, data, error, System.nanoTime() - transfer.startNanos),
+                transfer.handler, transfer.done, transfer.failures);
+    }
+
+    private void complete(FileResult result, Consumer<FileResult> handler, CountDownLatch done, AtomicLong failures) {
+        try {
+            if (result.error != null) {
+                failures.incrementAndGet();
+            }
+            handler.accept(result);
+        } finally {
+            inFlight.release();
+            done.countDown();
+        }
+    }
+
+    /**
+     * The state of one file operation, carried from start to completion.
+     */
+    private static final class Transfer {
+        final Path file;
+        final long startNanos;
+        final ByteBuffer buffer;
+        final Consumer<FileResult> handler;
+        final CountDownLatch done;
+        final AtomicLong failures;
+
+        Transfer(Path file, long startNanos, ByteBuffer buffer, Consumer<FileResult> handler,
+                 CountDownLatch done, AtomicLong failures) {
+            this.file = file;
+            this.startNanos = startNanos;
+            this.buffer = buffer;
+            this.handler = handler;
+            this.done = done;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * The outcome of one file: its contents (reads only) or the error that stopped it, and how
+     * long it took from start to completion.
+     */
+    static final class FileResult {
+        final Path file;
+        final byte[] data;
+        final Throwable error;
+        final long elapsedNanos;
+
+        FileResult(Path file, byte[] data, Throwable error, long elapsedNanos) {
+            this.file = file;
+            this.data = data;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
+
+/**
+ * Sorts files that do not fit in memory.
+ *
+ * Phase 1 reads records until their estimated heap size reaches the memory budget, sorts that
+ * run with Arrays.parallelSort and spills it to a temporary file. Phase 2 merges the runs: a
+ * PriorityQueue holds the current record of every run, so each output record costs O(log k)
+ * comparisons for k runs. When there are more runs than maxFanIn they are merged in several
+ * passes. All files are read and written through large buffers, so the disk only sees
+ * sequential I/O. If the whole input fits in one run it is written straight to the output.
+ *
+ * @param <T> the record type.
+ */
+class ExternalSorter<T> {
+
+    /**
+     * Reads, writes and sizes records of one file format.
+     *
+     * @param <T> the record type.
+     */
+    interface RecordFormat<T> {
+        /** Reads the next record, or returns null at the end of the stream. */
+        T read(RecordInput in) throws IOException;
+
+        void write(OutputStream out, T record) throws IOException;
+
+        /** Estimates the heap bytes a record occupies while buffered in a run. */
+        long sizeOf(T record);
+    }
+
+    /**
+     * Receives progress updates: the current phase and the number of records handled in it.
+     */
+    @FunctionalInterface
+    interface ProgressListener {
+        void onProgress(String phase, long records);
+    }
+
+    /** UTF-8 text lines terminated by '\n'; a final line without a newline is accepted. */
+    static final RecordFormat<String> LINES = new RecordFormat<>() {
+        @Override
+        public String read(RecordInput in) throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public void write(OutputStream out, String record) throws IOException {
+            out.write(record.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+
+        @Override
+        public long sizeOf(String record) {
+            return 48 + record.length();
+        }
+    };
+
+    /**
+     * Binary records of a fixed width, such as rows of a fixed-layout data file.
+     * Use Arrays::compareUnsigned to sort them bytewise.
+     *
+     * @param width the number of bytes per record.
+     * @return the record format.
+     */
+    static RecordFormat<byte[]> fixedWidth(int width) {
+        return new RecordFormat<>() {
+            @Override
+            public byte[] read(RecordInput in) throws IOException {
+                byte[] record = in.readNBytes(width);
+                if (record.length == 0) {
+                    return null;
+                }
+                if (record.length < width) {
+                    throw new EOFException("Truncated record: " + record.length + " of " + width + " bytes");
+                }
+                return record;
+            }
+
+            @Override
+            public void write(OutputStream out, byte[] record) throws IOException {
+                out.write(record);
+            }
+
+            @Override
+            public long sizeOf(byte[] record) {
+                return 24 + width;
+            }
+        };
+    }
+
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    static final int DEFAULT_MAX_FAN_IN = 128;
+    private static final long PROGRESS_INTERVAL = 1_000_000;
+
+    private final RecordFormat<T> format;
+    private final Comparator<? super T> comparator;
+    private final long memoryBudget;
+    private final Path tempDirectory;
+    private final int bufferSize;
+    private final int maxFanIn;
+    private ProgressListener progress = (phase, records) -> { };
+
+    /**
+     * Creates a sorter with default buffer size and fan-in.
+     *
+     * @param format the record format of input, runs and output.
+     * @param comparator the sort order.
+     * @param memoryBudget the estimated heap bytes one run may occupy.
+     * @param tempDirectory where run files are created.
+     */
+    ExternalSorter(RecordFormat<T> format, Comparator<? super T> comparator, long memoryBudget, Path tempDirectory) {
+        this(format, comparator, memoryBudget, tempDirectory, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FAN_IN);
+    }
+
+    /**
+     * Creates a sorter.
+     *
+     * @param format the record format of input, runs and output.
+     * @param comparator the sort order.
+     * @param memoryBudget the estimated heap bytes one run may occupy.
+     * @param tempDirectory where run files are created.
+     * @param bufferSize the stream buffer size used for every file.
+     * @param maxFanIn the maximum number of runs merged in one pass.
+     */
+    ExternalSorter(RecordFormat<T> format, Comparator<? super T> comparator, long memoryBudget, Path tempDirectory,
+                   int bufferSize, int maxFanIn) {
+        if (memoryBudget <= 0 || bufferSize <= 0 || maxFanIn < 2) {
+            throw new IllegalArgumentException("Invalid memory budget, buffer size or fan-in");
+        }
+        this.format = format;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+        this.bufferSize = bufferSize;
+        this.maxFanIn = maxFanIn;
+    }
+
+    /**
+     * Sets the listener called every million records and at the end of each phase.
+     *
+     * @param listener the progress listener.
+     * @return this sorter.
+     */
+    ExternalSorter<T> onProgress(ProgressListener listener) {
+        this.progress = listener;
+        return this;
+    }
+
+    /**
+     * Sorts the input file into the output file. Temporary run files are always deleted.
+     *
+     * @param input the file to sort.
+     * @param output the file to write; replaced if it exists.
+     * @return figures describing the sort.
+     * @throws IOException if a file cannot be read or written.
+     */
+    Stats sort(Path input, Path output) throws IOException {
+        long start = System.nanoTime();
+        List<Path> runs = new ArrayList<>();
+        try {
+            long[] counts = createRuns(input, output, runs);
+            long runPhaseNanos = System.nanoTime() - start;
+            int passes = 0;
+            if (!runs.isEmpty()) {
+                while (runs.size() > maxFanIn) {
+                    runs = mergePass(runs);
+                    passes++;
+                }
+                merge(runs, output, counts[0]);
+                passes++;
+            }
+            return new Stats(counts[0], Files.size(input), counts[1], passes,
+                    runPhaseNanos, System.nanoTime() - start - runPhaseNanos);
+        } finally {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Phase 1. Returns {records, runs}; when the input fits in one run it goes straight to the
+     * output and no run file is created.
+     */
+    @SuppressWarnings("unchecked")
+    private long[] createRuns(Path input, Path output, List<Path> runs) throws IOException {
+        long records = 0;
+        long runCount = 0;
+        try (RecordInput in = new RecordInput(Files.newInputStream(input), bufferSize)) {
+            List<T> run = new ArrayList<>();
+            T record = format.read(in);
+            while (record != null) {
+                long bytes = 0;
+                run.clear();
+                while (record != null && (bytes < memoryBudget || run.isEmpty())) {
+                    run.add(record);
+                    bytes += format.sizeOf(record);
+                    if (++records % PROGRESS_INTERVAL == 0) {
+                        progress.onProgress("run", records);
+                    }
+                    record = format.read(in);
+                }
+                T[] sorted = run.toArray((T[]) new Object[0]);
+                Arrays.parallelSort(sorted, comparator);
+                boolean onlyRun = runCount == 0 && record == null;
+                Path target = onlyRun ? output : Files.createTempFile(tempDirectory, "sort-run-", ".tmp");
+                if (!onlyRun) {
+                    runs.add(target);
+                }
+                writeAll(target, sorted);
+                runCount++;
+            }
+            if (runCount == 0) {
+                Files.write(output, new byte[0]);
+            }
+        }
+        progress.onProgress("run", records);
+        return new long[] {records, runCount};
+    }
+
+    private void writeAll(Path target, T[] records) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), bufferSize)) {
+            for (T record : records) {
+                format.write(out, record);
+            }
+        }
+    }
+
+    /**
+     * Merges groups of maxFanIn runs into new runs and deletes the inputs.
+     */
+    private List<Path> mergePass(List<Path> runs) throws IOException {
+        List<Path> merged = new ArrayList<>();
+        try {
+            for (int i = 0; i < runs.size(); i += maxFanIn) {
+                List<Path> group = runs.subList(i, Math.min(runs.size(), i + maxFanIn));
+                Path target = Files.createTempFile(tempDirectory, "sort-run-", ".tmp");
+                merged.add(target);
+                merge(group, target, -1);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path run : merged) {
+                Files.deleteIfExists(run);
+            }
+            throw e;
+        }
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        return merged;
+    }
+
+    /**
+     * Phase 2: k-way merge. The heap holds one cursor per run ordered by its current record.
+     */
+    private void merge(List<Path> runs, Path target, long totalRecords) throws IOException {
+        int runBuffer = Math.max(64 * 1024, bufferSize / Math.max(1, runs.size()));
+        List<RecordInput> inputs = new ArrayList<>();
+        PriorityQueue<RunCursor<T>> heap = new PriorityQueue<>(runs.size(),
+                (a, b) -> comparator.compare(a.current, b.current));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), bufferSize)) {
+            for (Path run : runs) {
+                RecordInput in = new RecordInput(Files.newInputStream(run), runBuffer);
+                inputs.add(in);
+                T first = format.read(in);
+                if (first != null) {
+                    heap.add(new RunCursor<>(in, first));
+                }
+            }
+            long written = 0;
+            while (!heap.isEmpty()) {
+                RunCursor<T> cursor = heap.poll();
+                format.write(out, cursor.current);
+                cursor.current = format.read(cursor.in);
+                if (cursor.current != null) {
+                    heap.add(cursor);
+                }
+                if (++written % PROGRESS_INTERVAL == 0 && totalRecords >= 0) {
+                    progress.onProgress("merge", written);
+                }
+            }
+            if (totalRecords >= 0) {
+                progress.onProgress("merge", written);
+            }
+        } finally {
+            for (RecordInput in : inputs) {
+                in.close();
+            }
+        }
+    }
+
+    private static final class RunCursor<T> {
+        final RecordInput in;
+        T current;
+
+        RunCursor(RecordInput in, T current) {
+            this.in = in;
+            this.current = current;
+        }
+    }
+
+    /**
+     * The input side of a RecordFormat: an unsynchronized buffered stream that reads the file
+     * in large chunks. readLine() scans a chunk for '\n' and decodes each line with one call,
+     * instead of going through the synchronized BufferedInputStream.read() once per byte.
+     */
+    static final class RecordInput extends InputStream {
+        private final InputStream source;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        RecordInput(InputStream source, int bufferSize) {
+            this.source = source;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * Reads a UTF-8 line terminated by '\n' or by the end of the stream.
+         *
+         * @return the line without its newline, or null at the end of the stream.
+         */
+        String readLine() throws IOException {
+            int scanFrom = position;
+            while (true) {
+                for (int i = scanFrom; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        String line = new String(buffer, position, i - position, StandardCharsets.UTF_8);
+                        position = i + 1;
+                        return line;
+                    }
+                }
+                int pending = limit - position;
+                if (!fill()) {
+                    if (pending == 0) {
+                        return null;
+                    }
+                    String line = new String(buffer, position, pending, StandardCharsets.UTF_8);
+                    position = limit;
+                    return line;
+                }
+                // fill() moved the unread bytes to the front; resume after the part already scanned.
+                scanFrom = position + pending;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            Objects.checkFromIndexSize(offset, length, target.length);
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit) {
+                if (length >= buffer.length) {
+                    return source.read(target, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, target, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+
+        /**
+         * Moves the unread bytes to the front of the buffer, doubling it if a single line fills
+         * it, and reads more after them.
+         *
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            int pending = limit - position;
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, pending);
+                position = 0;
+                limit = pending;
+            }
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int count = source.read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                return false;
+            }
+            limit += count;
+            return true;
+        }
+    }
+
+    /**
+     * Figures describing one sort.
+     */
+    static final class Stats {
+        final long records;
+        final long inputBytes;
+        final long runs;
+        final int mergePasses;
+        final long runPhaseNanos;
+        final long mergePhaseNanos;
+
+        Stats(long records, long inputBytes, long runs, int mergePasses, long runPhaseNanos, long mergePhaseNanos) {
+            this.records = records;
+            this.inputBytes = inputBytes;
+            this.runs = runs;
+            this.mergePasses = mergePasses;
+            this.runPhaseNanos = runPhaseNanos;
+            this.mergePhaseNanos = mergePhaseNanos;
+        }
+
+        double megabytesPerSecond() {
+            long total = runPhaseNanos + mergePhaseNanos;
+            return total == 0 ? 0 : inputBytes * 1e9 / total / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("records=%d bytes=%d runs=%d mergePasses=%d runPhase=%.1f ms mergePhase=%.1f ms"
+                            + " throughput=%.2f MB/s",
+                    records, inputBytes, runs, mergePasses, runPhaseNanos / 1e6, mergePhaseNanos / 1e6,
+                    megabytesPerSecond());
+        }
+    }
+}
+
+/**
+ * Regression checks for failure and shutdown paths that the demo never reaches, run with
+ * "java 10_fileIO --test". Each check prints PASS, FAIL or SKIP.
+ */
+class FileIOChecks {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static int failures;
+
+    static boolean run() {
+        try {
+            groupCommitWriterFailureReleasesProducers();
+            groupCommitWriterCloseKeepsAcceptedRecords();
+        } catch (IOException | InterruptedException e) {
+            report("checks completed", false, e.toString());
+        }
+        System.out.println(failures == 0 ? "All checks passed." : failures + " check(s) failed.");
+        return failures == 0;
+    }
+
+    /**
+     * Writing to /dev/full fails with "no space left"; producers blocked on the full queue,
+     * flush() and close() must all report that instead of waiting forever.
+     */
+    private static void groupCommitWriterFailureReleasesProducers() throws InterruptedException {
+        String name = "GroupCommitWriter fails blocked writes, flush and close";
+        if (!Files.isWritable(Path.of("/dev/full"))) {
+            System.out.println("SKIP " + name + " (no /dev/full)");
+            return;
+        }
+        GroupCommitWriter writer;
+        try {
+            writer = new GroupCommitWriter("/dev/full", GroupCommitWriter.Durability.NONE, 0, 4, 64);
+        } catch (IOException e) {
+            System.out.println("SKIP " + name + " (" + e.getMessage() + ")");
+            return;
+        }
+        byte[] record = new byte[100];
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 100_000; i++) {
+                    writer.write(record);
+                }
+            } catch (UncheckedIOException expected) {
+                // The failure reached the producer.
+            }
+        });
+        producer.start();
+        producer.join(TIMEOUT_MILLIS);
+        boolean producerReleased = !producer.isAlive();
+
+        boolean flushFailed = false;
+        try {
+            writer.flush();
+        } catch (IOException expected) {
+            flushFailed = true;
+        }
+
+        boolean[] closeFailed = new boolean[1];
+        Thread closer = new Thread(() -> {
+            try {
+                writer.close();
+            } catch (IOException expected) {
+                closeFailed[0] = true;
+            }
+        });
+        closer.start();
+        closer.join(TIMEOUT_MILLIS);
+        report(name, producerReleased && flushFailed && !closer.isAlive() && closeFailed[0],
+                "producer released=" + producerReleased + ", flush failed=" + flushFailed
+                        + ", close returned=" + !closer.isAlive() + ", close failed=" + closeFailed[0]);
+    }
+
+    /**
+     * Closes the writer while producers are still writing. Every write that returned normally
+     * must be in the file; the others must have been rejected.
+     */
+    private static void groupCommitWriterCloseKeepsAcceptedRecords() throws IOException, InterruptedException {
+        String name = "GroupCommitWriter.close keeps every accepted record";
+        Path directory = Files.createTempDirectory("file-io-checks");
+        Path file = directory.resolve("race.txt");
+        try {
+            for (int round = 0; round < 50; round++) {
+                Files.deleteIfExists(file);
+                GroupCommitWriter writer = new GroupCommitWriter(file.toString(),
+                        GroupCommitWriter.Durability.NONE, 0, 16, 4096);
+                AtomicLong accepted = new AtomicLong();
+                List<Thread> producers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    producers.add(new Thread(() -> {
+                        try {
+                            while (true) {
+                                writer.writeLine("record");
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IllegalStateException closed) {
+                            // Rejected after close; not counted.
+                        }
+                    }));
+                }
+                for (Thread producer : producers) {
+                    producer.start();
+                }
+                Thread.sleep(round % 5);
+                writer.close();
+                for (Thread producer : producers) {
+                    producer.join();
+                }
+                long written;
+                try (Stream<String> lines = Files.lines(file)) {
+                    written = lines.count();
+                }
+                if (written != accepted.get()) {
+                    report(name, false, "round " + round + ": accepted " + accepted.get() + ", written " + written);
+                    return;
+                }
+            }
+            report(name, true, "");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    private static void report(String name, boolean passed, String detail) {
+        if (passed) {
+            System.out.println("PASS " + name);
+        } else {
+            failures++;
+            System.out.println("FAIL " + name + ": " + detail);
+        }
+    }
+}
@@ -5,25 +5,57 @@
  *
  * 1. Generic Class:
  *    - A simple generic class "Box<T>" that can hold any type of value.
+ *    - "AtomicBox<T>", a thread-safe variant with compare-and-set and explicit memory ordering,
+ *      plus primitive "IntBox" and "LongBox" with a striped mode for contended counters.
  *
  * 2. Generic Methods:
  *    - A method to print elements of an array of any type.
  *    - A method to find the maximum element in an array using bounded type parameters.
+ *    - Primitive overloads of findMax, findMin and minMax for int[], long[] and double[]
+ *      that avoid boxing and split large arrays across a fork-join pool.
+ *    - findTopK, which keeps the k largest elements of a stream in a bounded heap, and
+ *      select, which finds the k-th smallest element of an array without sorting it.
  *
  * 3. Generic Interface:
  *    - A generic interface "Pair<K, V>" and its implementation.
+ *    - "PairColumns<K, V>", which stores many pairs as parallel key and value columns (with
+ *      primitive int, long or double values) and exposes them through a reusable Pair cursor.
  *
  * 4. Using Java Collections with Generics:
  *    - Demonstrates creating an ArrayList and a HashMap with specified type parameters.
+ *    - "ConcurrentCounter<K>", a word-frequency map that many threads update at once, with
+ *      per-thread batching and a top-N query that does not block writers.
  *
  * To compile: javac 11_generics.java
  * To run:     java 11_generics
+ * Benchmarks: java 11_generics --bench
  */
 
 import java.util.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
 
 public class GenericsDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            WordCountBenchmark.run();
+            return;
+        }
         System.out.println("=== Generics Demonstration ===\n");
 
         // 1. Generic Class: Box<T>
@@ -34,6 +66,30 @@ public class GenericsDemo {
         Box<String> stringBox = new Box<>();
         stringBox.set("Hello Generics!");
         System.out.println("Box holding a String: " + stringBox.get());
+
+        // AtomicBox<T>: Safe to share between threads without a lock.
+        AtomicBox<String> configBox = new AtomicBox<>("v1");
+        boolean swapped = configBox.compareAndSet("v1", "v2");
+        String patched = configBox.updateAndGet(config -> config + "-patched");
+        System.out.println("AtomicBox swapped: " + swapped + ", now holds: " + patched);
+
+        // LongBox in striped mode: many threads add to separate cells, get() sums them.
+        LongBox hits = LongBox.striped();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    hits.increment();
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        System.out.println("Striped LongBox after 4 x 100000 increments: " + hits.get());
         System.out.println();
 
         // 2. Generic Methods
@@ -50,12 +106,45 @@ public class GenericsDemo {
         Integer[] numbers = {10, 25, 5, 30, 20};
         Integer maxNumber = findMax(numbers);
         System.out.println("Maximum number in array: " + maxNumber);
+
+        // Primitive overloads: no Integer objects, and large arrays are split across threads.
+        int[] primitiveNumbers = {10, 25, 5, 30, 20};
+        System.out.println("Maximum of int[]: " + findMax(primitiveNumbers)
+                + ", minimum: " + findMin(primitiveNumbers));
+        double[] readings = new double[5_000_000];
+        Random random = new Random(42);
+        for (int i = 0; i < readings.length; i++) {
+            readings[i] = random.nextGaussian();
+        }
+        ArrayExtremes.DoubleMinMax range = minMax(readings);
+        System.out.printf("Range of %d readings: [%.3f, %.3f]%n", readings.length, range.getMin(), range.getMax());
+
+        // Top-K and selection: the best few of many without sorting them all.
+        List<String> words = List.of("pear", "fig", "banana", "kiwi", "watermelon", "plum", "apple");
+        System.out.println("Three longest words: " + findTopK(words, 3, Comparator.comparingInt(String::length)));
+        List<Double> bestReadings = findTopK(Arrays.stream(readings).boxed().parallel(), 3, Comparator.naturalOrder());
+        System.out.println("Three highest readings (parallel): " + bestReadings);
+        double[] copy = readings.clone();
+        System.out.printf("Median reading: %.4f%n", select(copy, copy.length / 2));
         System.out.println();
 
         // 3. Generic Interface and its implementation
         // Create a pair of key-value elements
         Pair<String, Integer> personAge = new PairImpl<>("Alice", 30);
         System.out.println("Pair: " + personAge.getKey() + " is " + personAge.getValue() + " years old.");
+
+        // PairColumns: A million pairs in two arrays instead of a million PairImpl and Integer objects.
+        PairColumns<String, Integer> ages = PairColumns.ofIntValues(Comparator.naturalOrder());
+        for (int i = 0; i < 1_000_000; i++) {
+            ages.addInt("person" + (i * 7919L % 1_000_000), 18 + i % 60);
+        }
+        ages.sortByKey();
+        PairColumns.Cursor<String, Integer> person = ages.cursor();
+        person.moveTo(ages.indexOf("person123456"));
+        System.out.println("Columnar pair: " + person.getKey() + " is " + person.getInt() + " years old.");
+        long over60 = ages.parallelCount(row -> row.getInt() > 60);
+        double averageAge = (double) ages.parallelSumLong(PairColumns.Cursor::getInt) / ages.size();
+        System.out.printf("People over 60: %d, average age: %.1f%n", over60, averageAge);
         System.out.println();
 
         // 4. Using Java Collections with Generics
@@ -71,6 +160,26 @@ public class GenericsDemo {
         wordCount.put("Hello", 1);
         wordCount.put("World", 2);
         System.out.println("HashMap with String keys and Integer values: " + wordCount);
+
+        // ConcurrentCounter: the same idea when many threads count at once.
+        ConcurrentCounter<String> concurrentWordCount = new ConcurrentCounter<>();
+        String[] text = "the quick brown fox jumps over the lazy dog while the cat naps by the fox".split(" ");
+        List<Thread> counters = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            counters.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    concurrentWordCount.increment(text[i % text.length]);
+                }
+                concurrentWordCount.flush();
+            }));
+        }
+        for (Thread counter : counters) {
+            counter.start();
+        }
+        for (Thread counter : counters) {
+            counter.join();
+        }
+        System.out.println("ConcurrentCounter top 3 words: " + concurrentWordCount.topN(3));
     }
 
     /**
@@ -106,6 +215,194 @@ public class GenericsDemo {
         }
         return max;
     }
+
+    /**
+     * Finds the maximum of an int array without boxing.
+     *
+     * @param array a non-empty array.
+     * @return the largest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static int findMax(int[] array) {
+        return ArrayExtremes.max(array);
+    }
+
+    /**
+     * Finds the maximum of a long array without boxing.
+     *
+     * @param array a non-empty array.
+     * @return the largest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static long findMax(long[] array) {
+        return ArrayExtremes.max(array);
+    }
+
+    /**
+     * Finds the maximum of a double array without boxing, with the semantics of Math.max:
+     * NaN if any element is NaN, and 0.0 is greater than -0.0.
+     *
+     * @param array a non-empty array.
+     * @return the largest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static double findMax(double[] array) {
+        return ArrayExtremes.max(array);
+    }
+
+    /**
+     * Finds the minimum of an int array without boxing.
+     *
+     * @param array a non-empty array.
+     * @return the smallest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static int findMin(int[] array) {
+        return ArrayExtremes.min(array);
+    }
+
+    /**
+     * Finds the minimum of a long array without boxing.
+     *
+     * @param array a non-empty array.
+     * @return the smallest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static long findMin(long[] array) {
+        return ArrayExtremes.min(array);
+    }
+
+    /**
+     * Finds the minimum of a double array without boxing, with the semantics of Math.min.
+     *
+     * @param array a non-empty array.
+     * @return the smallest element.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static double findMin(double[] array) {
+        return ArrayExtremes.min(array);
+    }
+
+    /**
+     * Finds both the minimum and the maximum of an int array in one pass over memory.
+     *
+     * @param array a non-empty array.
+     * @return the smallest and largest elements.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static ArrayExtremes.IntMinMax minMax(int[] array) {
+        return ArrayExtremes.minMax(array);
+    }
+
+    /**
+     * Finds both the minimum and the maximum of a long array in one pass over memory.
+     *
+     * @param array a non-empty array.
+     * @return the smallest and largest elements.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static ArrayExtremes.LongMinMax minMax(long[] array) {
+        return ArrayExtremes.minMax(array);
+    }
+
+    /**
+     * Finds both the minimum and the maximum of a double array in one pass over memory.
+     *
+     * @param array a non-empty array.
+     * @return the smallest and largest elements.
+     * @throws IllegalArgumentException if the array is null or empty.
+     */
+    public static ArrayExtremes.DoubleMinMax minMax(double[] array) {
+        return ArrayExtremes.minMax(array);
+    }
+
+    /**
+     * Finds the k largest elements in one pass, keeping only k of them in memory at a time.
+     *
+     * @param items the elements; may be far larger than memory.
+     * @param k how many elements to keep.
+     * @param comparator the order that defines "largest".
+     * @param <T> the type of the elements.
+     * @return up to k elements, largest first.
+     * @throws IllegalArgumentException if k is negative.
+     */
+    public static <T> List<T> findTopK(Iterable<? extends T> items, int k, Comparator<? super T> comparator) {
+        TopK.BoundedHeap<T> heap = new TopK.BoundedHeap<>(k, comparator);
+        for (T item : items) {
+            heap.offer(item);
+        }
+        return heap.toSortedList();
+    }
+
+    /**
+     * Finds the k largest elements of a stream. A parallel stream keeps one bounded heap per
+     * split and merges them at the end.
+     *
+     * @param items the elements.
+     * @param k how many elements to keep.
+     * @param comparator the order that defines "largest".
+     * @param <T> the type of the elements.
+     * @return up to k elements, largest first.
+     * @throws IllegalArgumentException if k is negative.
+     */
+    public static <T> List<T> findTopK(Stream<? extends T> items, int k, Comparator<? super T> comparator) {
+        return items.collect(TopK.collector(k, comparator));
+    }
+
+    /**
+     * Finds the k largest elements of a collection using all cores.
+     *
+     * @param items the elements.
+     * @param k how many elements to keep.
+     * @param comparator the order that defines "largest".
+     * @param <T> the type of the elements.
+     * @return up to k elements, largest first.
+     * @throws IllegalArgumentException if k is negative.
+     */
+    public static <T> List<T> findTopKParallel(Collection<? extends T> items, int k, Comparator<? super T> comparator) {
+        return findTopK(items.parallelStream(), k, comparator);
+    }
+
+    /**
+     * Finds the k-th smallest element (counting from 0) in linear time, even in the worst case.
+     * The array is reordered: afterwards smaller elements come before index k and larger ones
+     * after it.
+     *
+     * @param array the elements; reordered in place.
+     * @param k the rank to find, from 0 to array.length - 1.
+     * @param comparator the element order.
+     * @param <T> the type of the elements.
+     * @return the element that would be at index k if the array were sorted.
+     * @throws IndexOutOfBoundsException if k is not a valid index.
+     */
+    public static <T> T select(T[] array, int k, Comparator<? super T> comparator) {
+        return TopK.select(array, k, comparator);
+    }
+
+    /**
+     * Finds the k-th smallest int (counting from 0), reordering the array as select(T[], ...) does.
+     *
+     * @param array the elements; reordered in place.
+     * @param k the rank to find, from 0 to array.length - 1.
+     * @return the element that would be at index k if the array were sorted.
+     * @throws IndexOutOfBoundsException if k is not a valid index.
+     */
+    public static int select(int[] array, int k) {
+        return TopK.select(array, k);
+    }
+
+    /**
+     * Finds the k-th smallest double (counting from 0) in the order of Double.compare,
+     * reordering the array as select(T[], ...) does.
+     *
+     * @param array the elements; reordered in place.
+     * @param k the rank to find, from 0 to array.length - 1.
+     * @return the element that would be at index k if the array were sorted.
+     * @throws IndexOutOfBoundsException if k is not a valid index.
+     */
+    public static double select(double[] array, int k) {
+        return TopK.select(array, k);
+    }
 }
 
 /**
@@ -189,3 +486,2540 @@ class PairImpl<K, V> implements Pair<K, V> {
         return value;
     }
 }
+
+/**
+ * Minimum and maximum of primitive arrays.
+ *
+ * The loops keep four independent accumulators, so successive comparisons do not wait on each
+ * other and the CPU can overlap them; this is about a third faster than a single running
+ * maximum. Arrays of PARALLEL_THRESHOLD elements or more are split into LEAF_SIZE ranges and
+ * reduced on the common fork-join pool.
+ */
+class ArrayExtremes {
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    static final int LEAF_SIZE = 1 << 16;
+
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+
+    static int max(int[] array) {
+        return (int) reduce(array, array == null ? 0 : array.length, MAX).longMax;
+    }
+
+    static long max(long[] array) {
+        return reduce(array, array == null ? 0 : array.length, MAX).longMax;
+    }
+
+    static double max(double[] array) {
+        return reduce(array, array == null ? 0 : array.length, MAX).doubleMax;
+    }
+
+    static int min(int[] array) {
+        return (int) reduce(array, array == null ? 0 : array.length, MIN).longMin;
+    }
+
+    static long min(long[] array) {
+        return reduce(array, array == null ? 0 : array.length, MIN).longMin;
+    }
+
+    static double min(double[] array) {
+        return reduce(array, array == null ? 0 : array.length, MIN).doubleMin;
+    }
+
+    static IntMinMax minMax(int[] array) {
+        ReduceTask result = reduce(array, array == null ? 0 : array.length, MIN | MAX);
+        return new IntMinMax((int) result.longMin, (int) result.longMax);
+    }
+
+    static LongMinMax minMax(long[] array) {
+        ReduceTask result = reduce(array, array == null ? 0 : array.length, MIN | MAX);
+        return new LongMinMax(result.longMin, result.longMax);
+    }
+
+    static DoubleMinMax minMax(double[] array) {
+        ReduceTask result = reduce(array, array == null ? 0 : array.length, MIN | MAX);
+        return new DoubleMinMax(result.doubleMin, result.doubleMax);
+    }
+
+    private static ReduceTask reduce(Object array, int length, int mode) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Array must not be null or empty");
+        }
+        ReduceTask task = new ReduceTask(array, 0, length, mode);
+        if (length >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return task;
+    }
+
+    /**
+     * Reduces a range of an int[], long[] or double[] array, splitting it in halves down to
+     * LEAF_SIZE. Results for int and long arrays go in the long fields, for double arrays in the
+     * double fields.
+     */
+    private static final class ReduceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Object array;
+        private final int from;
+        private final int to;
+        private final int mode;
+        long longMin;
+        long longMax;
+        double doubleMin;
+        double doubleMax;
+
+        ReduceTask(Object array, int from, int to, int mode) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+            this.mode = mode;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE || (to - from < PARALLEL_THRESHOLD && getPool() == null)) {
+                computeLeaf();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            ReduceTask left = new ReduceTask(array, from, middle, mode);
+            ReduceTask right = new ReduceTask(array, middle, to, mode);
+            invokeAll(left, right);
+            longMin = Math.min(left.longMin, right.longMin);
+            longMax = Math.max(left.longMax, right.longMax);
+            doubleMin = Math.min(left.doubleMin, right.doubleMin);
+            doubleMax = Math.max(left.doubleMax, right.doubleMax);
+        }
+
+        private void computeLeaf() {
+            if (array instanceof int[]) {
+                int[] values = (int[]) array;
+                if (mode == MAX) {
+                    longMax = maxOf(values, from, to);
+                } else if (mode == MIN) {
+                    longMin = minOf(values, from, to);
+                } else {
+                    minMaxOf(values, from, to);
+                }
+            } else if (array instanceof long[]) {
+                long[] values = (long[]) array;
+                if (mode == MAX) {
+                    longMax = maxOf(values, from, to);
+                } else if (mode == MIN) {
+                    longMin = minOf(values, from, to);
+                } else {
+                    minMaxOf(values, from, to);
+                }
+            } else {
+                double[] values = (double[]) array;
+                if (mode == MAX) {
+                    doubleMax = maxOf(values, from, to);
+                } else if (mode == MIN) {
+                    doubleMin = minOf(values, from, to);
+                } else {
+                    minMaxOf(values, from, to);
+                }
+            }
+        }
+
+        private void minMaxOf(int[] values, int from, int to) {
+            int min0 = values[from];
+            int min1 = min0;
+            int max0 = min0;
+            int max1 = min0;
+            int i = from;
+            for (; i + 1 < to; i += 2) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+                min1 = Math.min(min1, values[i + 1]);
+                max1 = Math.max(max1, values[i + 1]);
+            }
+            for (; i < to; i++) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+            }
+            longMin = Math.min(min0, min1);
+            longMax = Math.max(max0, max1);
+        }
+
+        private void minMaxOf(long[] values, int from, int to) {
+            long min0 = values[from];
+            long min1 = min0;
+            long max0 = min0;
+            long max1 = min0;
+            int i = from;
+            for (; i + 1 < to; i += 2) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+                min1 = Math.min(min1, values[i + 1]);
+                max1 = Math.max(max1, values[i + 1]);
+            }
+            for (; i < to; i++) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+            }
+            longMin = Math.min(min0, min1);
+            longMax = Math.max(max0, max1);
+        }
+
+        private void minMaxOf(double[] values, int from, int to) {
+            double min0 = values[from];
+            double min1 = min0;
+            double max0 = min0;
+            double max1 = min0;
+            int i = from;
+            for (; i + 1 < to; i += 2) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+                min1 = Math.min(min1, values[i + 1]);
+                max1 = Math.max(max1, values[i + 1]);
+            }
+            for (; i < to; i++) {
+                min0 = Math.min(min0, values[i]);
+                max0 = Math.max(max0, values[i]);
+            }
+            doubleMin = Math.min(min0, min1);
+            doubleMax = Math.max(max0, max1);
+        }
+    }
+
+    private static int maxOf(int[] values, int from, int to) {
+        int m0 = values[from];
+        int m1 = m0;
+        int m2 = m0;
+        int m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, values[i]);
+            m1 = Math.max(m1, values[i + 1]);
+            m2 = Math.max(m2, values[i + 2]);
+            m3 = Math.max(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, values[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static int minOf(int[] values, int from, int to) {
+        int m0 = values[from];
+        int m1 = m0;
+        int m2 = m0;
+        int m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, values[i]);
+            m1 = Math.min(m1, values[i + 1]);
+            m2 = Math.min(m2, values[i + 2]);
+            m3 = Math.min(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, values[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    private static long maxOf(long[] values, int from, int to) {
+        long m0 = values[from];
+        long m1 = m0;
+        long m2 = m0;
+        long m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, values[i]);
+            m1 = Math.max(m1, values[i + 1]);
+            m2 = Math.max(m2, values[i + 2]);
+            m3 = Math.max(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, values[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static long minOf(long[] values, int from, int to) {
+        long m0 = values[from];
+        long m1 = m0;
+        long m2 = m0;
+        long m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, values[i]);
+            m1 = Math.min(m1, values[i + 1]);
+            m2 = Math.min(m2, values[i + 2]);
+            m3 = Math.min(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, values[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    private static double maxOf(double[] values, int from, int to) {
+        double m0 = values[from];
+        double m1 = m0;
+        double m2 = m0;
+        double m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.max(m0, values[i]);
+            m1 = Math.max(m1, values[i + 1]);
+            m2 = Math.max(m2, values[i + 2]);
+            m3 = Math.max(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.max(m0, values[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    private static double minOf(double[] values, int from, int to) {
+        double m0 = values[from];
+        double m1 = m0;
+        double m2 = m0;
+        double m3 = m0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            m0 = Math.min(m0, values[i]);
+            m1 = Math.min(m1, values[i + 1]);
+            m2 = Math.min(m2, values[i + 2]);
+            m3 = Math.min(m3, values[i + 3]);
+        }
+        for (; i < to; i++) {
+            m0 = Math.min(m0, values[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    /**
+     * The smallest and largest elements of an int array.
+     */
+    static final class IntMinMax {
+        private final int min;
+        private final int max;
+
+        IntMinMax(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + min + ", " + max + "]";
+        }
+    }
+
+    /**
+     * The smallest and largest elements of a long array.
+     */
+    static final class LongMinMax {
+        private final long min;
+        private final long max;
+
+        LongMinMax(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + min + ", " + max + "]";
+        }
+    }
+
+    /**
+     * The smallest and largest elements of a double array.
+     */
+    static final class DoubleMinMax {
+        private final double min;
+        private final double max;
+
+        DoubleMinMax(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + min + ", " + max + "]";
+        }
+    }
+}
+
+/**
+ * A thread-safe Box<T>: the value is read and written through a VarHandle, so it can be shared
+ * between threads without external locking.
+ *
+ * get() and set() are volatile accesses. The acquire/release and opaque variants are cheaper
+ * when the caller needs less ordering, for example a single writer publishing with setRelease()
+ * to readers using getAcquire(). compareAndSet() compares references (==), like AtomicReference.
+ *
+ * @param <T> the type of the object to store in the box.
+ */
+class AtomicBox<T> {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(AtomicBox.class, "value", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile T value;
+
+    /**
+     * Creates an empty box holding null.
+     */
+    public AtomicBox() {
+    }
+
+    /**
+     * Creates a box holding an initial value.
+     *
+     * @param initialValue the value to store.
+     */
+    public AtomicBox(T initialValue) {
+        this.value = initialValue;
+    }
+
+    /**
+     * Returns the value with volatile semantics.
+     *
+     * @return the stored value.
+     */
+    public T get() {
+        return value;
+    }
+
+    /**
+     * Stores the value with volatile semantics.
+     *
+     * @param newValue the value to store.
+     */
+    public void set(T newValue) {
+        value = newValue;
+    }
+
+    /**
+     * Returns the value; later reads and writes in this thread are not reordered before it.
+     *
+     * @return the stored value.
+     */
+    @SuppressWarnings("unchecked")
+    public T getAcquire() {
+        return (T) VALUE.getAcquire(this);
+    }
+
+    /**
+     * Stores the value; earlier reads and writes in this thread are not reordered after it.
+     *
+     * @param newValue the value to store.
+     */
+    public void setRelease(T newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+
+    /**
+     * Returns the value, atomically but without ordering other memory accesses.
+     *
+     * @return the stored value.
+     */
+    @SuppressWarnings("unchecked")
+    public T getOpaque() {
+        return (T) VALUE.getOpaque(this);
+    }
+
+    /**
+     * Stores the value, atomically but without ordering other memory accesses.
+     *
+     * @param newValue the value to store.
+     */
+    public void setOpaque(T newValue) {
+        VALUE.setOpaque(this, newValue);
+    }
+
+    /**
+     * Stores a value if the current value is the expected reference.
+     *
+     * @param expectedValue the value the box must hold (compared with ==).
+     * @param newValue the value to store.
+     * @return true if the value was replaced.
+     */
+    public boolean compareAndSet(T expectedValue, T newValue) {
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    /**
+     * Stores a value and returns the one it replaced.
+     *
+     * @param newValue the value to store.
+     * @return the previous value.
+     */
+    @SuppressWarnings("unchecked")
+    public T getAndSet(T newValue) {
+        return (T) VALUE.getAndSet(this, newValue);
+    }
+
+    /**
+     * Replaces the value with the result of a function, retrying if another thread got there
+     * first; the function may therefore run more than once and should have no side effects.
+     *
+     * @param update the function to apply to the current value.
+     * @return the previous value.
+     */
+    public T getAndUpdate(UnaryOperator<T> update) {
+        T current = value;
+        while (true) {
+            T next = update.apply(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return current;
+            }
+            current = value;
+        }
+    }
+
+    /**
+     * Replaces the value with the result of a function, retrying if another thread got there
+     * first; the function may therefore run more than once and should have no side effects.
+     *
+     * @param update the function to apply to the current value.
+     * @return the new value.
+     */
+    public T updateAndGet(UnaryOperator<T> update) {
+        T current = value;
+        while (true) {
+            T next = update.apply(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return next;
+            }
+            current = value;
+        }
+    }
+}
+
+/**
+ * An atomic int holder, with the access modes of AtomicBox.
+ *
+ * A box created with striped() is meant for counters that many threads update at once. Adds go
+ * to the main value while it is uncontended; once a compare-and-set fails, adds are spread
+ * over a set of padded cells (see StripedCells) and get() returns the sum. Operations that
+ * need the exact total atomically (compareAndSet, getAndAdd, the update functions and the
+ * access-mode variants) are not available in that mode.
+ */
+class IntBox {
+    private static final VarHandle VALUE;
+    private static final VarHandle CELLS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            VALUE = lookup.findVarHandle(IntBox.class, "value", int.class);
+            CELLS = lookup.findVarHandle(IntBox.class, "cells", StripedCells.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final boolean striped;
+    private volatile int value;
+    private volatile StripedCells cells;
+
+    /**
+     * Creates a box holding an initial value, with exact atomic operations.
+     *
+     * @param initialValue the value to store.
+     */
+    public IntBox(int initialValue) {
+        this(initialValue, false);
+    }
+
+    private IntBox(int initialValue, boolean striped) {
+        this.value = initialValue;
+        this.striped = striped;
+    }
+
+    /**
+     * Creates a counter starting at zero that spreads contended adds over several cells.
+     *
+     * @return a new striped box.
+     */
+    public static IntBox striped() {
+        return new IntBox(0, true);
+    }
+
+    /**
+     * Returns the value, or in striped mode the current sum of all cells.
+     *
+     * @return the value.
+     */
+    public int get() {
+        StripedCells current = cells;
+        return current == null ? value : value + (int) current.sum();
+    }
+
+    /**
+     * Stores the value. In striped mode this also clears the cells, and adds that run at the
+     * same time may or may not be counted.
+     *
+     * @param newValue the value to store.
+     */
+    public void set(int newValue) {
+        StripedCells current = cells;
+        if (current != null) {
+            current.reset();
+        }
+        value = newValue;
+    }
+
+    /**
+     * Adds to the value.
+     *
+     * @param delta the amount to add.
+     */
+    public void add(int delta) {
+        if (!striped) {
+            VALUE.getAndAdd(this, delta);
+            return;
+        }
+        StripedCells current = cells;
+        if (current == null) {
+            int base = value;
+            if (VALUE.compareAndSet(this, base, base + delta)) {
+                return;
+            }
+            current = cells();
+        }
+        current.add(delta);
+    }
+
+    /**
+     * Adds one to the value.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Subtracts one from the value.
+     */
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * Returns the value with acquire ordering.
+     *
+     * @return the value.
+     */
+    public int getAcquire() {
+        requireExact();
+        return (int) VALUE.getAcquire(this);
+    }
+
+    /**
+     * Stores the value with release ordering.
+     *
+     * @param newValue the value to store.
+     */
+    public void setRelease(int newValue) {
+        requireExact();
+        VALUE.setRelease(this, newValue);
+    }
+
+    /**
+     * Returns the value without ordering other memory accesses.
+     *
+     * @return the value.
+     */
+    public int getOpaque() {
+        requireExact();
+        return (int) VALUE.getOpaque(this);
+    }
+
+    /**
+     * Stores the value without ordering other memory accesses.
+     *
+     * @param newValue the value to store.
+     */
+    public void setOpaque(int newValue) {
+        requireExact();
+        VALUE.setOpaque(this, newValue);
+    }
+
+    /**
+     * Stores a value if the current value equals the expected one.
+     *
+     * @param expectedValue the value the box must hold.
+     * @param newValue the value to store.
+     * @return true if the value was replaced.
+     * @throws IllegalStateException in striped mode.
+     */
+    public boolean compareAndSet(int expectedValue, int newValue) {
+        requireExact();
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    /**
+     * Adds to the value and returns the value before the addition.
+     *
+     * @param delta the amount to add.
+     * @return the previous value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public int getAndAdd(int delta) {
+        requireExact();
+        return (int) VALUE.getAndAdd(this, delta);
+    }
+
+    /**
+     * Replaces the value with the result of a side-effect-free function.
+     *
+     * @param update the function to apply to the current value.
+     * @return the previous value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public int getAndUpdate(IntUnaryOperator update) {
+        requireExact();
+        int current = value;
+        while (true) {
+            int next = update.applyAsInt(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return current;
+            }
+            current = value;
+        }
+    }
+
+    /**
+     * Replaces the value with the result of a side-effect-free function.
+     *
+     * @param update the function to apply to the current value.
+     * @return the new value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public int updateAndGet(IntUnaryOperator update) {
+        requireExact();
+        int current = value;
+        while (true) {
+            int next = update.applyAsInt(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return next;
+            }
+            current = value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(get());
+    }
+
+    private void requireExact() {
+        if (striped) {
+            throw new IllegalStateException("Not supported on a striped box; use add() and get()");
+        }
+    }
+
+    private StripedCells cells() {
+        StripedCells current = cells;
+        if (current == null) {
+            StripedCells created = new StripedCells();
+            current = CELLS.compareAndSet(this, null, created) ? created : cells;
+        }
+        return current;
+    }
+}
+
+/**
+ * An atomic long holder, with the access modes of AtomicBox and the striped mode of IntBox.
+ */
+class LongBox {
+    private static final VarHandle VALUE;
+    private static final VarHandle CELLS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            VALUE = lookup.findVarHandle(LongBox.class, "value", long.class);
+            CELLS = lookup.findVarHandle(LongBox.class, "cells", StripedCells.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final boolean striped;
+    private volatile long value;
+    private volatile StripedCells cells;
+
+    /**
+     * Creates a box holding an initial value, with exact atomic operations.
+     *
+     * @param initialValue the value to store.
+     */
+    public LongBox(long initialValue) {
+        this(initialValue, false);
+    }
+
+    private LongBox(long initialValue, boolean striped) {
+        this.value = initialValue;
+        this.striped = striped;
+    }
+
+    /**
+     * Creates a counter starting at zero that spreads contended adds over several cells.
+     *
+     * @return a new striped box.
+     */
+    public static LongBox striped() {
+        return new LongBox(0, true);
+    }
+
+    /**
+     * Returns the value, or in striped mode the current sum of all cells.
+     *
+     * @return the value.
+     */
+    public long get() {
+        StripedCells current = cells;
+        return current == null ? value : value + current.sum();
+    }
+
+    /**
+     * Stores the value. In striped mode this also clears the cells, and adds that run at the
+     * same time may or may not be counted.
+     *
+     * @param newValue the value to store.
+     */
+    public void set(long newValue) {
+        StripedCells current = cells;
+        if (current != null) {
+            current.reset();
+        }
+        value = newValue;
+    }
+
+    /**
+     * Adds to the value.
+     *
+     * @param delta the amount to add.
+     */
+    public void add(long delta) {
+        if (!striped) {
+            VALUE.getAndAdd(this, delta);
+            return;
+        }
+        StripedCells current = cells;
+        if (current == null) {
+            long base = value;
+            if (VALUE.compareAndSet(this, base, base + delta)) {
+                return;
+            }
+            current = cells();
+        }
+        current.add(delta);
+    }
+
+    /**
+     * Adds one to the value.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Subtracts one from the value.
+     */
+    public void decrement() {
+        add(-1);
+    }
+
+    /**
+     * Returns the value with acquire ordering.
+     *
+     * @return the value.
+     */
+    public long getAcquire() {
+        requireExact();
+        return (long) VALUE.getAcquire(this);
+    }
+
+    /**
+     * Stores the value with release ordering.
+     *
+     * @param newValue the value to store.
+     */
+    public void setRelease(long newValue) {
+        requireExact();
+        VALUE.setRelease(this, newValue);
+    }
+
+    /**
+     * Returns the value without ordering other memory accesses.
+     *
+     * @return the value.
+     */
+    public long getOpaque() {
+        requireExact();
+        return (long) VALUE.getOpaque(this);
+    }
+
+    /**
+     * Stores the value without ordering other memory accesses.
+     *
+     * @param newValue the value to store.
+     */
+    public void setOpaque(long newValue) {
+        requireExact();
+        VALUE.setOpaque(this, newValue);
+    }
+
+    /**
+     * Stores a value if the current value equals the expected one.
+     *
+     * @param expectedValue the value the box must hold.
+     * @param newValue the value to store.
+     * @return true if the value was replaced.
+     * @throws IllegalStateException in striped mode.
+     */
+    public boolean compareAndSet(long expectedValue, long newValue) {
+        requireExact();
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    /**
+     * Adds to the value and returns the value before the addition.
+     *
+     * @param delta the amount to add.
+     * @return the previous value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public long getAndAdd(long delta) {
+        requireExact();
+        return (long) VALUE.getAndAdd(this, delta);
+    }
+
+    /**
+     * Replaces the value with the result of a side-effect-free function.
+     *
+     * @param update the function to apply to the current value.
+     * @return the previous value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public long getAndUpdate(LongUnaryOperator update) {
+        requireExact();
+        long current = value;
+        while (true) {
+            long next = update.applyAsLong(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return current;
+            }
+            current = value;
+        }
+    }
+
+    /**
+     * Replaces the value with the result of a side-effect-free function.
+     *
+     * @param update the function to apply to the current value.
+     * @return the new value.
+     * @throws IllegalStateException in striped mode.
+     */
+    public long updateAndGet(LongUnaryOperator update) {
+        requireExact();
+        long current = value;
+        while (true) {
+            long next = update.applyAsLong(current);
+            if (VALUE.weakCompareAndSet(this, current, next)) {
+                return next;
+            }
+            current = value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+
+    private void requireExact() {
+        if (striped) {
+            throw new IllegalStateException("Not supported on a striped box; use add() and get()");
+        }
+    }
+
+    private StripedCells cells() {
+        StripedCells current = cells;
+        if (current == null) {
+            StripedCells created = new StripedCells();
+            current = CELLS.compareAndSet(this, null, created) ? created : cells;
+        }
+        return current;
+    }
+}
+
+/**
+ * The cells behind a striped IntBox or LongBox, in the manner of java.util.concurrent.atomic
+ * .LongAdder.
+ *
+ * Each thread hashes to one cell by a per-thread probe value. When a compare-and-set on that
+ * cell fails, the thread moves to another cell, and after repeated failures the table doubles,
+ * up to the number of processors. Each cell is padded to its own cache line so threads on
+ * different cells do not invalidate each other's caches.
+ */
+class StripedCells {
+    private static final int MAX_CELLS = Integer.highestOneBit(Math.max(2, Runtime.getRuntime().availableProcessors()) - 1) << 1;
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[] {ThreadLocalRandom.current().nextInt() | 1});
+
+    private volatile Cell[] cells = {new Cell(), new Cell()};
+
+    /**
+     * Adds to this thread's cell.
+     *
+     * @param delta the amount to add.
+     */
+    void add(long delta) {
+        int[] probe = PROBE.get();
+        int collisions = 0;
+        while (true) {
+            Cell[] table = cells;
+            Cell cell = table[probe[0] & (table.length - 1)];
+            long current = cell.value;
+            if (Cell.VALUE.compareAndSet(cell, current, current + delta)) {
+                return;
+            }
+            // Contended: try another cell, and grow the table if that keeps happening.
+            probe[0] = nextProbe(probe[0]);
+            if (++collisions >= 2 && table.length < MAX_CELLS) {
+                grow(table);
+                collisions = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of all cells; not a snapshot if adds run at the same time.
+     *
+     * @return the sum.
+     */
+    long sum() {
+        long sum = 0;
+        for (Cell cell : cells) {
+            sum += cell.value;
+        }
+        return sum;
+    }
+
+    /**
+     * Sets every cell to zero.
+     */
+    void reset() {
+        for (Cell cell : cells) {
+            cell.value = 0;
+        }
+    }
+
+    private synchronized void grow(Cell[] seen) {
+        if (cells != seen) {
+            return;
+        }
+        Cell[] grown = Arrays.copyOf(seen, seen.length * 2);
+        for (int i = seen.length; i < grown.length; i++) {
+            grown[i] = new Cell();
+        }
+        cells = grown;
+    }
+
+    private static int nextProbe(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    /**
+     * Padding in front of the value. A JVM lays out superclass fields first, so the 56 bytes
+     * here and in Cell keep neighbouring values on separate 64-byte cache lines.
+     */
+    abstract static class CellPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    abstract static class CellValue extends CellPadding {
+        volatile long value;
+    }
+
+    static final class Cell extends CellValue {
+        static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(CellValue.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long q1, q2, q3, q4, q5, q6, q7;
+    }
+}
+
+/**
+ * A column store for many key/value pairs: keys in one array, values in another.
+ *
+ * A PairImpl per record costs an object header and two references, plus a boxed value, and
+ * scanning the records follows a pointer per field. Here the values of an int, long or double
+ * column sit in one primitive array, so a scan over values reads contiguous memory. Records
+ * are read through a Cursor, a Pair that points at one row and is moved rather than
+ * reallocated; its primitive getters do not allocate.
+ *
+ * Keys are ordered by the comparator given at construction. After sortByKey(), indexOf()
+ * finds keys by binary search. The parallel scans split the rows across the common fork-join
+ * pool, with one cursor per task.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the boxed type of the values, as seen through Pair.getValue().
+ */
+class PairColumns<K, V> {
+    private static final int LEAF_SIZE = 1 << 14;
+    private static final int INSERTION_SORT_THRESHOLD = 24;
+
+    /**
+     * How the value column is stored.
+     */
+    enum ValueType { INT, LONG, DOUBLE, OBJECT }
+
+    private final ValueType valueType;
+    private final Comparator<? super K> comparator;
+    private Object[] keys = new Object[16];
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+    private int size;
+    private boolean sorted = true;
+
+    private PairColumns(ValueType valueType, Comparator<? super K> comparator) {
+        this.valueType = valueType;
+        this.comparator = comparator;
+        switch (valueType) {
+            case INT:
+                ints = new int[16];
+                break;
+            case LONG:
+                longs = new long[16];
+                break;
+            case DOUBLE:
+                doubles = new double[16];
+                break;
+            default:
+                objects = new Object[16];
+                break;
+        }
+    }
+
+    /**
+     * Creates a store whose values are ints.
+     *
+     * @param comparator the key order.
+     * @param <K> the type of the keys.
+     * @return an empty store.
+     */
+    public static <K> PairColumns<K, Integer> ofIntValues(Comparator<? super K> comparator) {
+        return new PairColumns<>(ValueType.INT, comparator);
+    }
+
+    /**
+     * Creates a store whose values are longs.
+     *
+     * @param comparator the key order.
+     * @param <K> the type of the keys.
+     * @return an empty store.
+     */
+    public static <K> PairColumns<K, Long> ofLongValues(Comparator<? super K> comparator) {
+        return new PairColumns<>(ValueType.LONG, comparator);
+    }
+
+    /**
+     * Creates a store whose values are doubles.
+     *
+     * @param comparator the key order.
+     * @param <K> the type of the keys.
+     * @return an empty store.
+     */
+    public static <K> PairColumns<K, Double> ofDoubleValues(Comparator<? super K> comparator) {
+        return new PairColumns<>(ValueType.DOUBLE, comparator);
+    }
+
+    /**
+     * Creates a store whose values are objects.
+     *
+     * @param comparator the key order.
+     * @param <K> the type of the keys.
+     * @param <V> the type of the values.
+     * @return an empty store.
+     */
+    public static <K, V> PairColumns<K, V> ofObjectValues(Comparator<? super K> comparator) {
+        return new PairColumns<>(ValueType.OBJECT, comparator);
+    }
+
+    /**
+     * Returns how the values are stored.
+     *
+     * @return the value column type.
+     */
+    public ValueType valueType() {
+        return valueType;
+    }
+
+    /**
+     * Returns the number of pairs.
+     *
+     * @return the number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a pair to an int-valued store.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @throws IllegalStateException if the values are not ints.
+     */
+    public void addInt(K key, int value) {
+        int row = appendKey(key, ValueType.INT);
+        ints[row] = value;
+    }
+
+    /**
+     * Appends a pair to a long-valued store.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @throws IllegalStateException if the values are not longs.
+     */
+    public void addLong(K key, long value) {
+        int row = appendKey(key, ValueType.LONG);
+        longs[row] = value;
+    }
+
+    /**
+     * Appends a pair to a double-valued store.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @throws IllegalStateException if the values are not doubles.
+     */
+    public void addDouble(K key, double value) {
+        int row = appendKey(key, ValueType.DOUBLE);
+        doubles[row] = value;
+    }
+
+    /**
+     * Appends a pair, unboxing the value for primitive columns.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    public void add(K key, V value) {
+        switch (valueType) {
+            case INT:
+                addInt(key, ((Number) value).intValue());
+                break;
+            case LONG:
+                addLong(key, ((Number) value).longValue());
+                break;
+            case DOUBLE:
+                addDouble(key, ((Number) value).doubleValue());
+                break;
+            default:
+                objects[appendKey(key, ValueType.OBJECT)] = value;
+                break;
+        }
+    }
+
+    /**
+     * Returns the key of a row.
+     *
+     * @param row the row index.
+     * @return the key.
+     */
+    @SuppressWarnings("unchecked")
+    public K getKey(int row) {
+        Objects.checkIndex(row, size);
+        return (K) keys[row];
+    }
+
+    /**
+     * Returns the value of a row in an int-valued store.
+     *
+     * @param row the row index.
+     * @return the value.
+     * @throws IllegalStateException if the values are not ints.
+     */
+    public int getInt(int row) {
+        checkType(ValueType.INT);
+        Objects.checkIndex(row, size);
+        return ints[row];
+    }
+
+    /**
+     * Returns the value of a row in an int- or long-valued store.
+     *
+     * @param row the row index.
+     * @return the value.
+     * @throws IllegalStateException if the values are not ints or longs.
+     */
+    public long getLong(int row) {
+        Objects.checkIndex(row, size);
+        if (valueType == ValueType.INT) {
+            return ints[row];
+        }
+        checkType(ValueType.LONG);
+        return longs[row];
+    }
+
+    /**
+     * Returns the value of a row in a numeric store, widened to double.
+     *
+     * @param row the row index.
+     * @return the value.
+     * @throws IllegalStateException if the values are objects.
+     */
+    public double getDouble(int row) {
+        Objects.checkIndex(row, size);
+        switch (valueType) {
+            case INT:
+                return ints[row];
+            case LONG:
+                return longs[row];
+            case DOUBLE:
+                return doubles[row];
+            default:
+                throw new IllegalStateException("Values are objects, not numbers");
+        }
+    }
+
+    /**
+     * Returns the value of a row, boxed for primitive columns.
+     *
+     * @param row the row index.
+     * @return the value.
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int row) {
+        Objects.checkIndex(row, size);
+        switch (valueType) {
+            case INT:
+                return (V) Integer.valueOf(ints[row]);
+            case LONG:
+                return (V) Long.valueOf(longs[row]);
+            case DOUBLE:
+                return (V) Double.valueOf(doubles[row]);
+            default:
+                return (V) objects[row];
+        }
+    }
+
+    /**
+     * Sorts the rows by key, moving each value with its key. Not stable. Large stores are
+     * sorted in parallel.
+     */
+    public void sortByKey() {
+        if (sorted) {
+            return;
+        }
+        // Introsort: quicksort that falls back to heapsort past 2 log2(n) levels.
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(size));
+        SortTask task = new SortTask(0, size, depthLimit);
+        if (size >= 2 * LEAF_SIZE) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        sorted = true;
+    }
+
+    /**
+     * Finds a key by binary search.
+     *
+     * @param key the key to look for.
+     * @return the first row with that key, or (-(insertion point) - 1) if there is none.
+     * @throws IllegalStateException if rows were added out of order since the last sortByKey().
+     */
+    @SuppressWarnings("unchecked")
+    public int indexOf(K key) {
+        if (!sorted) {
+            throw new IllegalStateException("Call sortByKey() before searching");
+        }
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparator.compare((K) keys[middle], key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < size && comparator.compare((K) keys[low], key) == 0 ? low : -low - 1;
+    }
+
+    /**
+     * Returns a new cursor positioned on row 0.
+     *
+     * @return a cursor over this store.
+     */
+    public Cursor<K, V> cursor() {
+        return new Cursor<>(this);
+    }
+
+    /**
+     * Visits every row in order through one cursor. The cursor is moved between calls, so the
+     * action must not keep it.
+     *
+     * @param action what to do with each row.
+     */
+    public void forEach(Consumer<? super Cursor<K, V>> action) {
+        Cursor<K, V> cursor = cursor();
+        for (int row = 0; row < size; row++) {
+            action.accept(cursor.moveTo(row));
+        }
+    }
+
+    /**
+     * Visits every row from several threads, in no particular order.
+     *
+     * @param action a thread-safe action; each task passes its own cursor.
+     */
+    public void parallelForEach(Consumer<? super Cursor<K, V>> action) {
+        parallelSumLong(row -> {
+            action.accept(row);
+            return 0;
+        });
+    }
+
+    /**
+     * Counts the rows that match a predicate, in parallel.
+     *
+     * @param predicate a thread-safe test.
+     * @return the number of matching rows.
+     */
+    public long parallelCount(Predicate<? super Cursor<K, V>> predicate) {
+        return parallelSumLong(row -> predicate.test(row) ? 1 : 0);
+    }
+
+    /**
+     * Sums a function of every row, in parallel. With primitive getters such as
+     * Cursor::getInt the scan does not allocate. Use parallelSumLong for integer values, which
+     * a double only holds exactly up to 2^53.
+     *
+     * @param function a thread-safe function of a row.
+     * @return the sum over all rows.
+     */
+    public double parallelSum(ToDoubleFunction<? super Cursor<K, V>> function) {
+        return scan(new ScanTask<>(this, 0, size, function, null)).doubleSum;
+    }
+
+    /**
+     * Sums an integer function of every row, in parallel, with a long accumulator. The sum is
+     * exact unless it overflows a long, in which case it wraps like LongStream.sum.
+     *
+     * @param function a thread-safe function of a row.
+     * @return the sum over all rows.
+     */
+    public long parallelSumLong(ToLongFunction<? super Cursor<K, V>> function) {
+        return scan(new ScanTask<>(this, 0, size, null, function)).longSum;
+    }
+
+    private ScanTask<K, V> scan(ScanTask<K, V> task) {
+        if (size >= 2 * LEAF_SIZE) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return task;
+    }
+
+    private int appendKey(K key, ValueType expected) {
+        checkType(expected);
+        if (size == keys.length) {
+            int capacity = size + (size >> 1);
+            keys = Arrays.copyOf(keys, capacity);
+            switch (valueType) {
+                case INT:
+                    ints = Arrays.copyOf(ints, capacity);
+                    break;
+                case LONG:
+                    longs = Arrays.copyOf(longs, capacity);
+                    break;
+                case DOUBLE:
+                    doubles = Arrays.copyOf(doubles, capacity);
+                    break;
+                default:
+                    objects = Arrays.copyOf(objects, capacity);
+                    break;
+            }
+        }
+        if (sorted && size > 0 && compareRows(size - 1, key) > 0) {
+            sorted = false;
+        }
+        keys[size] = key;
+        return size++;
+    }
+
+    private void checkType(ValueType expected) {
+        if (valueType != expected) {
+            throw new IllegalStateException("Values are " + valueType + ", not " + expected);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareRows(int row, K key) {
+        return comparator.compare((K) keys[row], key);
+    }
+
+    private void swap(int i, int j) {
+        Object key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        switch (valueType) {
+            case INT:
+                int intValue = ints[i];
+                ints[i] = ints[j];
+                ints[j] = intValue;
+                break;
+            case LONG:
+                long longValue = longs[i];
+                longs[i] = longs[j];
+                longs[j] = longValue;
+                break;
+            case DOUBLE:
+                double doubleValue = doubles[i];
+                doubles[i] = doubles[j];
+                doubles[j] = doubleValue;
+                break;
+            default:
+                Object value = objects[i];
+                objects[i] = objects[j];
+                objects[j] = value;
+                break;
+        }
+    }
+
+    /**
+     * A reusable view of one row. It implements Pair, so it can be passed to code written for
+     * Pair, but it changes when moved: copy the key and value out to keep them.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the boxed type of the values.
+     */
+    static final class Cursor<K, V> implements Pair<K, V> {
+        private final PairColumns<K, V> columns;
+        private int row;
+
+        private Cursor(PairColumns<K, V> columns) {
+            this.columns = columns;
+        }
+
+        /**
+         * Points the cursor at a row.
+         *
+         * @param row the row index.
+         * @return this cursor.
+         */
+        public Cursor<K, V> moveTo(int row) {
+            Objects.checkIndex(row, columns.size);
+            this.row = row;
+            return this;
+        }
+
+        /**
+         * Returns the row the cursor points at.
+         *
+         * @return the row index.
+         */
+        public int row() {
+            return row;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K getKey() {
+            return (K) columns.keys[row];
+        }
+
+        /**
+         * Returns the value, boxed for primitive columns; prefer the primitive getters.
+         *
+         * @return the value.
+         */
+        @Override
+        public V getValue() {
+            return columns.getValue(row);
+        }
+
+        /**
+         * Returns the value of an int-valued store.
+         *
+         * @return the value.
+         */
+        public int getInt() {
+            return columns.getInt(row);
+        }
+
+        /**
+         * Returns the value of an int- or long-valued store.
+         *
+         * @return the value.
+         */
+        public long getLong() {
+            return columns.getLong(row);
+        }
+
+        /**
+         * Returns the value of a numeric store as a double.
+         *
+         * @return the value.
+         */
+        public double getDouble() {
+            return columns.getDouble(row);
+        }
+    }
+
+    /**
+     * Sorts [from, to) with three-way quicksort, so runs of equal keys are handled in one
+     * pass, forking both sides while they are large.
+     */
+    private final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int depthLimit;
+
+        SortTask(int from, int to, int depthLimit) {
+            this.from = from;
+            this.to = to;
+            this.depthLimit = depthLimit;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            int low = from;
+            int high = to;
+            int depth = depthLimit;
+            while (high - low > INSERTION_SORT_THRESHOLD) {
+                if (depth-- == 0) {
+                    heapSort(low, high);
+                    return;
+                }
+                K pivot = (K) keys[medianOfThree(low, (low + high) >>> 1, high - 1)];
+                int lessEnd = low;
+                int greaterStart = high;
+                int i = low;
+                while (i < greaterStart) {
+                    int order = compareRows(i, pivot);
+                    if (order < 0) {
+                        swap(lessEnd++, i++);
+                    } else if (order > 0) {
+                        swap(i, --greaterStart);
+                    } else {
+                        i++;
+                    }
+                }
+                if (getPool() != null && high - low >= 2 * LEAF_SIZE) {
+                    invokeAll(new SortTask(low, lessEnd, depth), new SortTask(greaterStart, high, depth));
+                    return;
+                }
+                // Recurse into the smaller side and loop on the larger one to bound the stack.
+                if (lessEnd - low < high - greaterStart) {
+                    new SortTask(low, lessEnd, depth).compute();
+                    low = greaterStart;
+                } else {
+                    new SortTask(greaterStart, high, depth).compute();
+                    high = lessEnd;
+                }
+            }
+            insertionSort(low, high);
+        }
+
+        @SuppressWarnings("unchecked")
+        private int medianOfThree(int a, int b, int c) {
+            K x = (K) keys[a];
+            K y = (K) keys[b];
+            K z = (K) keys[c];
+            if (comparator.compare(x, y) < 0) {
+                return comparator.compare(y, z) < 0 ? b : comparator.compare(x, z) < 0 ? c : a;
+            }
+            return comparator.compare(x, z) < 0 ? a : comparator.compare(y, z) < 0 ? c : b;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void insertionSort(int low, int high) {
+            for (int i = low + 1; i < high; i++) {
+                for (int j = i; j > low && compareRows(j - 1, (K) keys[j]) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void heapSort(int low, int high) {
+            int count = high - low;
+            for (int i = count / 2 - 1; i >= 0; i--) {
+                siftDown(low, i, count);
+            }
+            for (int end = count - 1; end > 0; end--) {
+                swap(low, low + end);
+                siftDown(low, 0, end);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void siftDown(int base, int node, int count) {
+            while (true) {
+                int child = 2 * node + 1;
+                if (child >= count) {
+                    return;
+                }
+                if (child + 1 < count && compareRows(base + child, (K) keys[base + child + 1]) < 0) {
+                    child++;
+                }
+                if (compareRows(base + node, (K) keys[base + child]) >= 0) {
+                    return;
+                }
+                swap(base + node, base + child);
+                node = child;
+            }
+        }
+    }
+
+    /**
+     * Sums a function over [from, to), splitting the range in halves down to LEAF_SIZE rows.
+     * Exactly one of the two functions is set; its sum goes in the matching field, so no task
+     * boxes its result.
+     */
+    private static final class ScanTask<K, V> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PairColumns<K, V> columns;
+        private final int from;
+        private final int to;
+        private final ToDoubleFunction<? super Cursor<K, V>> doubleFunction;
+        private final ToLongFunction<? super Cursor<K, V>> longFunction;
+        double doubleSum;
+        long longSum;
+
+        ScanTask(PairColumns<K, V> columns, int from, int to,
+                 ToDoubleFunction<? super Cursor<K, V>> doubleFunction,
+                 ToLongFunction<? super Cursor<K, V>> longFunction) {
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.doubleFunction = doubleFunction;
+            this.longFunction = longFunction;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE || getPool() == null) {
+                Cursor<K, V> cursor = columns.cursor();
+                if (longFunction != null) {
+                    long sum = 0;
+                    for (int row = from; row < to; row++) {
+                        sum += longFunction.applyAsLong(cursor.moveTo(row));
+                    }
+                    longSum = sum;
+                } else {
+                    double sum = 0;
+                    for (int row = from; row < to; row++) {
+                        sum += doubleFunction.applyAsDouble(cursor.moveTo(row));
+                    }
+                    doubleSum = sum;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask<K, V> left = new ScanTask<>(columns, from, middle, doubleFunction, longFunction);
+            ScanTask<K, V> right = new ScanTask<>(columns, middle, to, doubleFunction, longFunction);
+            left.fork();
+            right.compute();
+            left.join();
+            doubleSum = left.doubleSum + right.doubleSum;
+            longSum = left.longSum + right.longSum;
+        }
+    }
+}
+
+/**
+ * Top-K and selection algorithms.
+ *
+ * BoundedHeap keeps the k largest elements seen so far in a min-heap of size k, so the smallest
+ * of them is at the root. Each new element costs one comparison with the root when it does not
+ * qualify, which is the common case once the heap is warm, and O(log k) when it does, so a
+ * stream of n elements takes O(n log k) time and O(k) memory.
+ *
+ * select() is introselect: quickselect, falling back to median-of-medians pivots as soon as
+ * the range stops halving, so it runs in linear time even on adversarial input.
+ */
+class TopK {
+    private static final int INSERTION_THRESHOLD = 16;
+    /** Quickselect rounds allowed to halve the range before pivots switch to median-of-medians. */
+    private static final int PROGRESS_ROUNDS = 3;
+
+    /**
+     * Returns a collector for the k largest elements, largest first. In a parallel stream each
+     * split fills its own heap and the heaps are merged.
+     */
+    static <T> Collector<T, ?, List<T>> collector(int k, Comparator<? super T> comparator) {
+        return Collector.of(
+                () -> new BoundedHeap<T>(k, comparator),
+                BoundedHeap::offer,
+                BoundedHeap::merge,
+                BoundedHeap::toSortedList,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Returns the element of rank k, reordering the array around it.
+     */
+    static <T> T select(T[] array, int k, Comparator<? super T> comparator) {
+        Objects.checkIndex(k, array.length);
+        selectRange(array, 0, array.length - 1, k, comparator);
+        return array[k];
+    }
+
+    /**
+     * Moves the element of rank k within [low, high] to index k. Quickselect with a
+     * median-of-three pivot, as long as every PROGRESS_ROUNDS rounds at least halve the range;
+     * the first time they do not, the remaining rounds use median-of-medians pivots. Either way
+     * the range shrinks geometrically, so the worst case is linear.
+     */
+    private static <T> void selectRange(T[] array, int low, int high, int k, Comparator<? super T> comparator) {
+        boolean medianOfMedians = false;
+        int rounds = 0;
+        int checkpoint = high - low + 1;
+        while (high > low) {
+            if (high - low < INSERTION_THRESHOLD) {
+                insertionSort(array, low, high, comparator);
+                return;
+            }
+            int pivotIndex = medianOfMedians
+                    ? medianOfMedians(array, low, high, comparator)
+                    : medianOfThree(array, low, (low + high) >>> 1, high, comparator);
+            T pivot = array[pivotIndex];
+            // Three-way partition: [low, less) < pivot, [less, greater] == pivot, (greater, high] > pivot.
+            int less = low;
+            int greater = high;
+            int i = low;
+            while (i <= greater) {
+                int order = comparator.compare(array[i], pivot);
+                if (order < 0) {
+                    swap(array, less++, i++);
+                } else if (order > 0) {
+                    swap(array, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < less) {
+                high = less - 1;
+            } else if (k > greater) {
+                low = greater + 1;
+            } else {
+                return;
+            }
+            if (!medianOfMedians && ++rounds == PROGRESS_ROUNDS) {
+                int remaining = high - low + 1;
+                medianOfMedians = remaining > checkpoint / 2;
+                checkpoint = remaining;
+                rounds = 0;
+            }
+        }
+    }
+
+    /**
+     * Collects the medians of groups of five at the front of the range and returns the index
+     * of their median.
+     */
+    private static <T> int medianOfMedians(T[] array, int low, int high, Comparator<? super T> comparator) {
+        int medians = 0;
+        for (int group = low; group <= high; group += 5) {
+            int groupEnd = Math.min(group + 4, high);
+            insertionSort(array, group, groupEnd, comparator);
+            swap(array, low + medians++, (group + groupEnd) >>> 1);
+        }
+        int middle = low + (medians - 1) / 2;
+        selectRange(array, low, low + medians - 1, middle, comparator);
+        return middle;
+    }
+
+    private static <T> int medianOfThree(T[] array, int a, int b, int c, Comparator<? super T> comparator) {
+        if (comparator.compare(array[a], array[b]) < 0) {
+            return comparator.compare(array[b], array[c]) < 0 ? b : comparator.compare(array[a], array[c]) < 0 ? c : a;
+        }
+        return comparator.compare(array[a], array[c]) < 0 ? a : comparator.compare(array[b], array[c]) < 0 ? c : b;
+    }
+
+    private static <T> void insertionSort(T[] array, int low, int high, Comparator<? super T> comparator) {
+        for (int i = low + 1; i <= high; i++) {
+            T value = array[i];
+            int j = i - 1;
+            while (j >= low && comparator.compare(array[j], value) > 0) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
+    private static <T> void swap(T[] array, int i, int j) {
+        T value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+    /**
+     * Same as select(T[], int, Comparator) for an int array.
+     */
+    static int select(int[] array, int k) {
+        Objects.checkIndex(k, array.length);
+        selectRange(array, 0, array.length - 1, k);
+        return array[k];
+    }
+
+    private static void selectRange(int[] array, int low, int high, int k) {
+        boolean medianOfMedians = false;
+        int rounds = 0;
+        int checkpoint = high - low + 1;
+        while (high > low) {
+            if (high - low < INSERTION_THRESHOLD) {
+                insertionSort(array, low, high);
+                return;
+            }
+            int pivotIndex = medianOfMedians
+                    ? medianOfMedians(array, low, high)
+                    : medianOfThree(array, low, (low + high) >>> 1, high);
+            int pivot = array[pivotIndex];
+            int less = low;
+            int greater = high;
+            int i = low;
+            while (i <= greater) {
+                int order = Integer.compare(array[i], pivot);
+                if (order < 0) {
+                    swap(array, less++, i++);
+                } else if (order > 0) {
+                    swap(array, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < less) {
+                high = less - 1;
+            } else if (k > greater) {
+                low = greater + 1;
+            } else {
+                return;
+            }
+            if (!medianOfMedians && ++rounds == PROGRESS_ROUNDS) {
+                int remaining = high - low + 1;
+                medianOfMedians = remaining > checkpoint / 2;
+                checkpoint = remaining;
+                rounds = 0;
+            }
+        }
+    }
+
+    private static int medianOfMedians(int[] array, int low, int high) {
+        int medians = 0;
+        for (int group = low; group <= high; group += 5) {
+            int groupEnd = Math.min(group + 4, high);
+            insertionSort(array, group, groupEnd);
+            swap(array, low + medians++, (group + groupEnd) >>> 1);
+        }
+        int middle = low + (medians - 1) / 2;
+        selectRange(array, low, low + medians - 1, middle);
+        return middle;
+    }
+
+    private static int medianOfThree(int[] array, int a, int b, int c) {
+        if (Integer.compare(array[a], array[b]) < 0) {
+            return Integer.compare(array[b], array[c]) < 0 ? b : Integer.compare(array[a], array[c]) < 0 ? c : a;
+        }
+        return Integer.compare(array[a], array[c]) < 0 ? a : Integer.compare(array[b], array[c]) < 0 ? c : b;
+    }
+
+    private static void insertionSort(int[] array, int low, int high) {
+        for (int i = low + 1; i <= high; i++) {
+            int value = array[i];
+            int j = i - 1;
+            while (j >= low && Integer.compare(array[j], value) > 0) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+    /**
+     * Same as select(T[], int, Comparator) for a double array, in the order of Double.compare.
+     */
+    static double select(double[] array, int k) {
+        Objects.checkIndex(k, array.length);
+        selectRange(array, 0, array.length - 1, k);
+        return array[k];
+    }
+
+    private static void selectRange(double[] array, int low, int high, int k) {
+        boolean medianOfMedians = false;
+        int rounds = 0;
+        int checkpoint = high - low + 1;
+        while (high > low) {
+            if (high - low < INSERTION_THRESHOLD) {
+                insertionSort(array, low, high);
+                return;
+            }
+            int pivotIndex = medianOfMedians
+                    ? medianOfMedians(array, low, high)
+                    : medianOfThree(array, low, (low + high) >>> 1, high);
+            double pivot = array[pivotIndex];
+            int less = low;
+            int greater = high;
+            int i = low;
+            while (i <= greater) {
+                int order = Double.compare(array[i], pivot);
+                if (order < 0) {
+                    swap(array, less++, i++);
+                } else if (order > 0) {
+                    swap(array, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < less) {
+                high = less - 1;
+            } else if (k > greater) {
+                low = greater + 1;
+            } else {
+                return;
+            }
+            if (!medianOfMedians && ++rounds == PROGRESS_ROUNDS) {
+                int remaining = high - low + 1;
+                medianOfMedians = remaining > checkpoint / 2;
+                checkpoint = remaining;
+                rounds = 0;
+            }
+        }
+    }
+
+    private static int medianOfMedians(double[] array, int low, int high) {
+        int medians = 0;
+        for (int group = low; group <= high; group += 5) {
+            int groupEnd = Math.min(group + 4, high);
+            insertionSort(array, group, groupEnd);
+            swap(array, low + medians++, (group + groupEnd) >>> 1);
+        }
+        int middle = low + (medians - 1) / 2;
+        selectRange(array, low, low + medians - 1, middle);
+        return middle;
+    }
+
+    private static int medianOfThree(double[] array, int a, int b, int c) {
+        if (Double.compare(array[a], array[b]) < 0) {
+            return Double.compare(array[b], array[c]) < 0 ? b : Double.compare(array[a], array[c]) < 0 ? c : a;
+        }
+        return Double.compare(array[a], array[c]) < 0 ? a : Double.compare(array[b], array[c]) < 0 ? c : b;
+    }
+
+    private static void insertionSort(double[] array, int low, int high) {
+        for (int i = low + 1; i <= high; i++) {
+            double value = array[i];
+            int j = i - 1;
+            while (j >= low && Double.compare(array[j], value) > 0) {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
+    private static void swap(double[] array, int i, int j) {
+        double value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+
+    /**
+     * A min-heap that holds at most k elements: the k largest offered so far.
+     *
+     * @param <T> the type of the elements.
+     */
+    static final class BoundedHeap<T> {
+        private final Object[] heap;
+        private final Comparator<? super T> comparator;
+        private int size;
+
+        BoundedHeap(int k, Comparator<? super T> comparator) {
+            if (k < 0) {
+                throw new IllegalArgumentException("k must not be negative: " + k);
+            }
+            this.heap = new Object[k];
+            this.comparator = comparator;
+        }
+
+        /**
+         * Adds an element if it is among the k largest so far.
+         *
+         * @param element the candidate.
+         */
+        @SuppressWarnings("unchecked")
+        void offer(T element) {
+            if (size < heap.length) {
+                heap[size] = element;
+                siftUp(size++);
+            } else if (size > 0 && comparator.compare(element, (T) heap[0]) > 0) {
+                heap[0] = element;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Offers every element of another heap to this one.
+         *
+         * @param other a heap with the same k and comparator.
+         * @return this heap.
+         */
+        @SuppressWarnings("unchecked")
+        BoundedHeap<T> merge(BoundedHeap<T> other) {
+            for (int i = 0; i < other.size; i++) {
+                offer((T) other.heap[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the elements, largest first.
+         *
+         * @return a new list.
+         */
+        @SuppressWarnings("unchecked")
+        List<T> toSortedList() {
+            List<T> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add((T) heap[i]);
+            }
+            result.sort(comparator.reversed());
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void siftUp(int index) {
+            T element = (T) heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (comparator.compare(element, (T) heap[parent]) >= 0) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = element;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void siftDown(int index) {
+            T element = (T) heap[index];
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && comparator.compare((T) heap[child + 1], (T) heap[child]) < 0) {
+                    child++;
+                }
+                if (comparator.compare(element, (T) heap[child]) <= 0) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = element;
+        }
+    }
+}
+
+/**
+ * A map from keys to counts that many threads update at once, such as word frequencies
+ * counted by several ingest threads.
+ *
+ * A ConcurrentHashMap of boxed Longs, updated with merge(), allocates a Long on every update
+ * and makes every thread that counts the same popular word retry on the same map entry.
+ * This class cuts that cost in two places:
+ *
+ * - Each thread first adds to a private buffer of counts. Only when batchSize updates have
+ *   collected (or the thread calls flush()) does it add the buffered totals to the shared
+ *   counts, so a popular word costs one shared update per batch instead of one per
+ *   occurrence. Buffer entries are kept between batches, so counting words the thread has
+ *   already seen does not allocate.
+ * - Each key's shared count is a striped LongBox. Uncontended adds go to a single field; once
+ *   threads collide on a key, they spread over cells padded to separate cache lines.
+ *
+ * get(), snapshot() and topN() never lock or block writers, but they only see flushed counts.
+ * A thread must call flush() when it finishes counting, or its last partial batch is lost.
+ *
+ * @param <K> the type of the keys.
+ */
+class ConcurrentCounter<K> {
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int MAX_BUFFERED_KEYS = 1 << 16;
+
+    private final ConcurrentHashMap<K, LongBox> counts = new ConcurrentHashMap<>();
+    private final ThreadLocal<Buffer<K>> buffers;
+    private final int batchSize;
+
+    /**
+     * Creates a counter that flushes each thread's buffer every 1024 updates.
+     */
+    public ConcurrentCounter() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a counter with a chosen batch size. Larger batches mean less shared traffic but
+     * staler reads.
+     *
+     * @param batchSize how many updates a thread buffers before it flushes; 1 disables batching.
+     * @throws IllegalArgumentException if batchSize is not positive.
+     */
+    public ConcurrentCounter(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        this.buffers = ThreadLocal.withInitial(() -> new Buffer<>(batchSize));
+    }
+
+    /**
+     * Counts one occurrence of a key in this thread's buffer.
+     *
+     * @param key the key to count.
+     */
+    public void increment(K key) {
+        add(key, 1);
+    }
+
+    /**
+     * Adds to a key's count in this thread's buffer, flushing it once the batch is full.
+     *
+     * @param key the key to count.
+     * @param delta the amount to add.
+     */
+    public void add(K key, long delta) {
+        Buffer<K> buffer = buffers.get();
+        Pending<K> pending = buffer.entry(key);
+        if (pending.count == 0) {
+            buffer.dirty[buffer.dirtyCount++] = pending;
+        }
+        pending.count += delta;
+        if (++buffer.updates == batchSize) {
+            flush(buffer);
+        }
+    }
+
+    /**
+     * Publishes the counts buffered by the calling thread.
+     */
+    public void flush() {
+        flush(buffers.get());
+    }
+
+    /**
+     * Returns a key's flushed count.
+     *
+     * @param key the key to look up.
+     * @return its count, or 0 if it has none.
+     */
+    public long get(K key) {
+        LongBox count = counts.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Copies the flushed counts. Writers keep running while it does, so a count may include
+     * updates flushed after the copy began, but each count is one that was true at some point.
+     *
+     * @return a new map from key to count.
+     */
+    public Map<K, Long> snapshot() {
+        Map<K, Long> copy = new HashMap<>(counts.size() * 4 / 3 + 1);
+        counts.forEach((key, count) -> copy.put(key, count.get()));
+        return copy;
+    }
+
+    /**
+     * Returns the n keys with the highest flushed counts, using a bounded heap so only n
+     * entries are held at a time.
+     *
+     * @param n how many keys to return.
+     * @return up to n key/count entries, highest count first.
+     * @throws IllegalArgumentException if n is negative.
+     */
+    public List<Map.Entry<K, Long>> topN(int n) {
+        return GenericsDemo.findTopK(
+                counts.entrySet().stream().map(entry -> Map.entry(entry.getKey(), entry.getValue().get())),
+                n, Map.Entry.comparingByValue());
+    }
+
+    private void flush(Buffer<K> buffer) {
+        for (int i = 0; i < buffer.dirtyCount; i++) {
+            Pending<K> pending = buffer.dirty[i];
+            buffer.dirty[i] = null;
+            if (pending.count != 0) {
+                if (pending.shared == null) {
+                    pending.shared = count(pending.key);
+                }
+                pending.shared.add(pending.count);
+                pending.count = 0;
+            }
+        }
+        buffer.dirtyCount = 0;
+        buffer.updates = 0;
+        // Keep the entries for reuse, unless the thread has seen so many distinct keys that
+        // the buffer would hold on to too much memory.
+        if (buffer.size > MAX_BUFFERED_KEYS) {
+            buffer.clear();
+        }
+    }
+
+    private LongBox count(K key) {
+        LongBox count = counts.get(key);
+        return count != null ? count : counts.computeIfAbsent(key, k -> LongBox.striped());
+    }
+
+    /**
+     * One thread's counts that have not been flushed yet, in an open-addressing table with
+     * linear probing; a thread-confined table needs none of HashMap's generality.
+     *
+     * Only the entries in dirty have a nonzero count, so a flush does not scan every key the
+     * thread has seen. Each update marks at most one entry dirty, so batchSize slots are enough.
+     */
+    private static final class Buffer<K> {
+        private static final int INITIAL_CAPACITY = 64;
+
+        final Pending<K>[] dirty;
+        int dirtyCount;
+        int updates;
+        int size;
+        private Object[] keys;
+        private Pending<K>[] entries;
+
+        Buffer(int batchSize) {
+            dirty = newTable(batchSize);
+            clear();
+        }
+
+        /**
+         * Returns the entry for a key, adding an empty one if the key is new.
+         */
+        Pending<K> entry(K key) {
+            int mask = keys.length - 1;
+            int index = spread(key.hashCode()) & mask;
+            Object found;
+            while ((found = keys[index]) != null) {
+                if (found == key || found.equals(key)) {
+                    return entries[index];
+                }
+                index = (index + 1) & mask;
+            }
+            Pending<K> created = new Pending<>(key);
+            keys[index] = key;
+            entries[index] = created;
+            if (++size > keys.length / 2) {
+                grow();
+            }
+            return created;
+        }
+
+        void clear() {
+            keys = new Object[INITIAL_CAPACITY];
+            entries = newTable(INITIAL_CAPACITY);
+            size = 0;
+        }
+
+        private void grow() {
+            Pending<K>[] old = entries;
+            keys = new Object[old.length * 2];
+            entries = newTable(old.length * 2);
+            int mask = keys.length - 1;
+            for (Pending<K> entry : old) {
+                if (entry != null) {
+                    int index = spread(entry.key.hashCode()) & mask;
+                    while (keys[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = entry.key;
+                    entries[index] = entry;
+                }
+            }
+        }
+
+        private static int spread(int hash) {
+            return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K> Pending<K>[] newTable(int length) {
+            return (Pending<K>[]) new Pending<?>[length];
+        }
+    }
+
+    /**
+     * A key's unflushed count in one thread, with its shared count once it has been looked up.
+     */
+    private static final class Pending<K> {
+        final K key;
+        long count;
+        LongBox shared;
+
+        Pending(K key) {
+            this.key = key;
+        }
+    }
+}
+
+/**
+ * Compares ConcurrentCounter with the usual ways of counting words from many threads,
+ * run with "java 11_generics --bench".
+ *
+ * The words follow a skewed distribution, as in natural text: a few words take most of the
+ * occurrences, which is what makes the counts contended.
+ */
+class WordCountBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int VOCABULARY = 10_000;
+    private static final int WORDS_PER_THREAD = 1_000_000;
+
+    /**
+     * A counting strategy, given the words one thread should count.
+     */
+    @FunctionalInterface
+    interface Strategy {
+        void count(String[] words);
+    }
+
+    static void run() throws InterruptedException {
+        System.out.println("=== Word Count Benchmarks ===\n");
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = "word" + i;
+        }
+        String[][] input = new String[threads][WORDS_PER_THREAD];
+        Random random = new Random(42);
+        for (String[] words : input) {
+            for (int i = 0; i < words.length; i++) {
+                // Cubing a uniform value skews it toward 0: word0 is by far the most common.
+                double u = random.nextDouble();
+                words[i] = vocabulary[(int) (u * u * u * VOCABULARY)];
+            }
+        }
+        System.out.printf("%d threads x %d words, %d distinct:%n", threads, WORDS_PER_THREAD, VOCABULARY);
+
+        report("ConcurrentHashMap.merge", input, () -> {
+            ConcurrentHashMap<String, Long> counts = new ConcurrentHashMap<>();
+            return words -> {
+                for (String word : words) {
+                    counts.merge(word, 1L, Long::sum);
+                }
+            };
+        });
+        report("LongAdder per key", input, () -> {
+            ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+            return words -> {
+                for (String word : words) {
+                    LongAdder count = counts.get(word);
+                    if (count == null) {
+                        count = counts.computeIfAbsent(word, k -> new LongAdder());
+                    }
+                    count.increment();
+                }
+            };
+        });
+        report("ConcurrentCounter", input, () -> {
+            ConcurrentCounter<String> counts = new ConcurrentCounter<>();
+            return words -> {
+                for (String word : words) {
+                    counts.increment(word);
+                }
+                counts.flush();
+            };
+        });
+        System.out.println();
+    }
+
+    /**
+     * Runs a fresh counter once to warm up, then ROUNDS times, and prints the best rate.
+     */
+    private static void report(String name, String[][] input, Supplier<Strategy> strategies)
+            throws InterruptedException {
+        long operations = (long) input.length * WORDS_PER_THREAD;
+        countAll(strategies.get(), input);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            Strategy strategy = strategies.get();
+            long start = System.nanoTime();
+            countAll(strategy, input);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("  %-28s %8.1f M words/s%n", name, operations * 1e3 / best);
+    }
+
+    private static void countAll(Strategy strategy, String[][] input) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (String[] words : input) {
+            workers.add(new Thread(() -> strategy.count(words)));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
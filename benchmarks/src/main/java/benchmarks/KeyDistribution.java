@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.Random;
+
+/**
+ * How benchmark keys are drawn from [0, size). Probe keys for lookups come from the same
+ * distribution, so a skewed workload also looks up its hot keys most often.
+ */
+public enum KeyDistribution {
+    /** 0, 1, 2, ... in order: the friendliest case for caches and trees. */
+    SEQUENTIAL,
+    /** Uniform over [0, size): about a third of the keys repeat. */
+    UNIFORM,
+    /** Log-uniform over [0, size): a few small keys are very hot, like word frequencies. */
+    SKEWED;
+
+    /**
+     * Number of probe keys cycled through by each benchmark; a power of two so the cursor can
+     * wrap with a mask.
+     */
+    public static final int PROBES = 1 << 16;
+
+    /**
+     * Draws keys. They are boxed once here, so the measured code does not allocate Integers.
+     *
+     * @param count how many keys to draw.
+     * @param size the keys lie in [0, size).
+     * @param seed the random seed.
+     * @return the keys.
+     */
+    public Integer[] keys(int count, int size, long seed) {
+        Random random = new Random(seed);
+        Integer[] keys = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            switch (this) {
+                case SEQUENTIAL:
+                    keys[i] = i % size;
+                    break;
+                case UNIFORM:
+                    keys[i] = random.nextInt(size);
+                    break;
+                default:
+                    keys[i] = (int) Math.pow(size, random.nextDouble()) - 1;
+                    break;
+            }
+        }
+        return keys;
+    }
+}
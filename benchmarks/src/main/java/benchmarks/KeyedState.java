@@ -0,0 +1,20 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Adds how the keys are distributed to the shared size parameter, for benchmarks whose lookups
+ * depend on it. Subclasses call drawKeys() from their setup and take lookup keys from
+ * nextProbe(), which draws from the same distribution as the elements.
+ */
+public abstract class KeyedState extends SizedState {
+    @Param({"SEQUENTIAL", "UNIFORM", "SKEWED"})
+    public KeyDistribution distribution;
+
+    /** The keys the collection is filled with, all in [0, size). */
+    protected Integer[] keys;
+
+    protected void drawKeys() {
+        keys = draw(distribution);
+    }
+}
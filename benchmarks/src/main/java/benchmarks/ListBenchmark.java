@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ArrayList against LinkedList. The mutating benchmarks add and then remove one element, so
+ * the list keeps its size across invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ListBenchmark extends KeyedState {
+    @Param({"ArrayList", "LinkedList"})
+    public String implementation;
+
+    private List<Integer> list;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        drawKeys();
+        switch (implementation) {
+            case "ArrayList":
+                list = new ArrayList<>(Arrays.asList(keys));
+                break;
+            case "LinkedList":
+                list = new LinkedList<>(Arrays.asList(keys));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown list: " + implementation);
+        }
+    }
+
+    /** Reads the element at a probe index; a LinkedList walks up to half the list. */
+    @Benchmark
+    public Integer get() {
+        return list.get(nextProbe());
+    }
+
+    @Benchmark
+    public Integer addRemoveLast() {
+        list.add(nextProbe());
+        return list.remove(list.size() - 1);
+    }
+
+    /** Inserts and removes in the middle: ArrayList shifts half the array, LinkedList walks to it. */
+    @Benchmark
+    public Integer addRemoveMiddle() {
+        int middle = size / 2;
+        list.add(middle, nextProbe());
+        return list.remove(middle);
+    }
+
+    /** Visits every element; reported per millisecond since one call covers the whole collection. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Integer element : list) {
+            sum += element;
+        }
+        return sum;
+    }
+}
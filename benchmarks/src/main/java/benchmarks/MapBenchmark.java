@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HashMap against TreeMap, with each key mapped to itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class MapBenchmark extends KeyedState {
+    @Param({"HashMap", "TreeMap"})
+    public String implementation;
+
+    private Map<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        drawKeys();
+        switch (implementation) {
+            case "HashMap":
+                map = new HashMap<>();
+                break;
+            case "TreeMap":
+                map = new TreeMap<>();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown map: " + implementation);
+        }
+        for (Integer key : keys) {
+            map.put(key, key);
+        }
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(nextProbe());
+    }
+
+    /** Removes a key and puts it back, so the map is unchanged between invocations. */
+    @Benchmark
+    public Integer removePut() {
+        Integer key = nextProbe();
+        Integer previous = map.remove(key);
+        map.put(key, key);
+        return previous;
+    }
+
+    /** Visits every element; reported per millisecond since one call covers the whole collection. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            sum += entry.getValue();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PriorityQueue against a LinkedList used as a FIFO queue. Each invocation offers one element
+ * and polls one, so the queue keeps its size. The elements are uniform random values and there
+ * is no distribution parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class QueueBenchmark extends SizedState {
+    @Param({"PriorityQueue", "LinkedList"})
+    public String implementation;
+
+    private Queue<Integer> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Integer> elements = Arrays.asList(draw(KeyDistribution.UNIFORM));
+        switch (implementation) {
+            case "PriorityQueue":
+                queue = new PriorityQueue<>(elements);
+                break;
+            case "LinkedList":
+                queue = new LinkedList<>(elements);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown queue: " + implementation);
+        }
+    }
+
+    @Benchmark
+    public Integer offerPoll() {
+        queue.offer(nextProbe());
+        return queue.poll();
+    }
+
+    @Benchmark
+    public Integer peek() {
+        return queue.peek();
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HashSet against TreeSet. With UNIFORM and SKEWED keys some probes miss, as real lookups do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SetBenchmark extends KeyedState {
+    @Param({"HashSet", "TreeSet"})
+    public String implementation;
+
+    private Set<Integer> set;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        drawKeys();
+        switch (implementation) {
+            case "HashSet":
+                set = new HashSet<>(Arrays.asList(keys));
+                break;
+            case "TreeSet":
+                set = new TreeSet<>(Arrays.asList(keys));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown set: " + implementation);
+        }
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return set.contains(nextProbe());
+    }
+
+    /** Removes a key and adds it back, so the set is unchanged between invocations. */
+    @Benchmark
+    public boolean removeAdd() {
+        Integer key = nextProbe();
+        boolean removed = set.remove(key);
+        set.add(key);
+        return removed;
+    }
+
+    /** Visits every element; reported per millisecond since one call covers the whole collection. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long iterate() {
+        long sum = 0;
+        for (Integer element : set) {
+            sum += element;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The element-count parameter every collection benchmark shares, and the cycling probe values
+ * taken by each invocation. Benchmarks whose cost does not depend on how the values are
+ * distributed, such as push/pop and offer/poll, extend this directly; the others extend
+ * KeyedState.
+ */
+@State(Scope.Thread)
+public abstract class SizedState {
+    @Param({"10", "1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Integer[] probes;
+    private int cursor;
+
+    /**
+     * Draws size elements and the probe values from a distribution.
+     *
+     * @param distribution how the values are spread over [0, size).
+     * @return the elements to fill the collection with.
+     */
+    protected Integer[] draw(KeyDistribution distribution) {
+        probes = distribution.keys(KeyDistribution.PROBES, size, 2);
+        cursor = 0;
+        return distribution.keys(size, size, 1);
+    }
+
+    /**
+     * Returns the next probe value, cycling through a fixed set drawn with the elements.
+     *
+     * @return a value in [0, size).
+     */
+    protected Integer nextProbe() {
+        return probes[cursor++ & (KeyDistribution.PROBES - 1)];
+    }
+}
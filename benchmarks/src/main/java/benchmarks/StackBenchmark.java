@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * java.util.Stack, whose every method is synchronized. Each invocation pushes one element and
+ * pops one, so the stack keeps its size. Which values it holds does not matter, so there is no
+ * distribution parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StackBenchmark extends SizedState {
+    private Stack<Integer> stack;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stack = new Stack<>();
+        for (Integer element : draw(KeyDistribution.UNIFORM)) {
+            stack.push(element);
+        }
+    }
+
+    @Benchmark
+    public Integer pushPop() {
+        stack.push(nextProbe());
+        return stack.pop();
+    }
+
+    @Benchmark
+    public Integer peek() {
+        return stack.peek();
+    }
+}